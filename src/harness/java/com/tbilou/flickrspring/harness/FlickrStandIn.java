@@ -0,0 +1,436 @@
+package com.tbilou.flickrspring.harness;
+
+import com.google.gson.stream.JsonWriter;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+import lombok.AllArgsConstructor;
+import lombok.Builder;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.UnsupportedEncodingException;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.URLDecoder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Pretends to be flickr: the rest methods used by FlickrApiService and the static farm
+ * hosts the photos are downloaded from.
+ * <p>
+ * The account is synthetic. There are {@code photosets} sets of {@code photosPerSet} photos
+ * and {@code photosNotInSet} photos without a set, every photo is a {@code fileSize} bytes
+ * file. Every request waits {@code latency} milliseconds and fails with a 500 with
+ * probability {@code errorRate}. The oauth signature is not checked.
+ */
+@Slf4j
+public class FlickrStandIn implements AutoCloseable {
+
+    private static final int PER_PAGE = 500;
+    // Ids of the photos in set s start at FIRST_PHOTO + s * SET_STRIDE
+    private static final long FIRST_PHOTO = 10_000_000_000L;
+    private static final long SET_STRIDE = 1_000_000L;
+    private static final long NOT_IN_SET = 90_000_000_000L;
+    private static final long FIRST_SET = 72157600000000000L;
+
+    private static final Pattern FILE = Pattern.compile("/farm/(\\d+)_o\\.jpg");
+    private static final Pattern RANGE = Pattern.compile("bytes=(\\d+)-(\\d*)");
+
+    @Getter
+    @Builder
+    public static class Account {
+        @Builder.Default
+        private final int photosets = 20;
+        @Builder.Default
+        private final int photosPerSet = 100;
+        @Builder.Default
+        private final int photosNotInSet = 100;
+        @Builder.Default
+        private final int fileSize = 1024 * 1024;
+        // milliseconds added to every request
+        @Builder.Default
+        private final long latency = 0;
+        // share of the requests answered with a 500
+        @Builder.Default
+        private final double errorRate = 0;
+        @Builder.Default
+        private final int threads = 64;
+
+        public int photos() {
+            return photosets * photosPerSet + photosNotInSet;
+        }
+    }
+
+    private final Account account;
+    private final byte[] content;
+    private final AtomicInteger createdSets = new AtomicInteger();
+    // Sets created through the api, id -> title and photo ids
+    private final Map<String, CreatedSet> created = new ConcurrentHashMap<>();
+
+    @AllArgsConstructor
+    private static class CreatedSet {
+        private final String title;
+        private volatile List<String> photoIds;
+    }
+
+    @Getter
+    private final AtomicLong apiCalls = new AtomicLong();
+    @Getter
+    private final AtomicLong filesServed = new AtomicLong();
+    @Getter
+    private final AtomicLong bytesServed = new AtomicLong();
+    @Getter
+    private final AtomicLong errors = new AtomicLong();
+
+    private HttpServer server;
+    private ExecutorService executor;
+
+    public FlickrStandIn(Account account) {
+        this.account = account;
+        this.content = new byte[account.getFileSize()];
+        new Random(42).nextBytes(content);
+    }
+
+    public void start() throws IOException {
+        executor = Executors.newFixedThreadPool(account.getThreads());
+        server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), 0), 1024);
+        server.setExecutor(executor);
+        server.createContext("/services/rest/", exchange -> handle(exchange, this::api));
+        server.createContext("/farm/", exchange -> handle(exchange, this::file));
+        server.start();
+        log.info("Flickr stand-in listening on {}, {} photos in {} sets", baseUrl(), account.photos(), account.getPhotosets());
+    }
+
+    @Override
+    public void close() {
+        if (server != null) {
+            server.stop(0);
+            executor.shutdownNow();
+        }
+    }
+
+    public String apiUrl() {
+        return baseUrl() + "/services/rest/";
+    }
+
+    private String baseUrl() {
+        return "http://localhost:" + server.getAddress().getPort();
+    }
+
+    private interface Handler {
+        void handle(HttpExchange exchange) throws IOException;
+    }
+
+    private void handle(HttpExchange exchange, Handler handler) throws IOException {
+        try {
+            if (account.getLatency() > 0) {
+                Thread.sleep(account.getLatency());
+            }
+            if (account.getErrorRate() > 0 && ThreadLocalRandom.current().nextDouble() < account.getErrorRate()) {
+                errors.incrementAndGet();
+                exchange.sendResponseHeaders(500, -1);
+                return;
+            }
+            handler.handle(exchange);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        } catch (IOException | RuntimeException e) {
+            log.debug("Stand-in failed to answer {} - {}", exchange.getRequestURI(), e.getMessage());
+        } finally {
+            exchange.close();
+        }
+    }
+
+    /* ===================================================== */
+    /* rest api                                               */
+
+    private void api(HttpExchange exchange) throws IOException {
+        apiCalls.incrementAndGet();
+        final Map<String, String> params = params(exchange);
+        exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+        exchange.sendResponseHeaders(200, 0);
+
+        try (Writer out = new OutputStreamWriter(exchange.getResponseBody(), StandardCharsets.UTF_8);
+             JsonWriter json = new JsonWriter(out)) {
+            json.beginObject();
+            final String method = String.valueOf(params.get("method"));
+            switch (method) {
+                case "flickr.photosets.getList":
+                    photosets(json);
+                    break;
+                case "flickr.photosets.getPhotos":
+                    if (!photosetPhotos(json, params)) {
+                        fail(json, 1, "Photoset not found");
+                        return;
+                    }
+                    break;
+                case "flickr.photos.getNotInSet":
+                    json.name("photos");
+                    photoPage(json, page(params), account.getPhotosNotInSet(), NOT_IN_SET, null);
+                    break;
+                case "flickr.photos.recentlyUpdated":
+                case "flickr.photos.search":
+                    allPhotos(json, page(params));
+                    break;
+                case "flickr.photos.getAllContexts":
+                    contexts(json, params.get("photo_id"));
+                    break;
+                case "flickr.photosets.create":
+                    final String id = String.valueOf(FIRST_SET + account.getPhotosets() + createdSets.incrementAndGet());
+                    created.put(id, new CreatedSet(params.get("title"), Collections.singletonList(params.get("primary_photo_id"))));
+                    json.name("photoset").beginObject().name("id").value(id).endObject();
+                    break;
+                case "flickr.photosets.addPhoto":
+                    created.computeIfPresent(params.get("photoset_id"), (key, set) -> {
+                        final List<String> photoIds = new ArrayList<>(set.photoIds);
+                        photoIds.add(params.get("photo_id"));
+                        set.photoIds = photoIds;
+                        return set;
+                    });
+                    break;
+                case "flickr.photosets.editPhotos":
+                    // Only the sets we created remember their photos
+                    created.computeIfPresent(params.get("photoset_id"), (key, set) -> {
+                        set.photoIds = Arrays.asList(params.get("photo_ids").split(","));
+                        return set;
+                    });
+                    break;
+                default:
+                    fail(json, 112, "Method \"" + method + "\" not found");
+                    return;
+            }
+            json.name("stat").value("ok");
+            json.endObject();
+        }
+    }
+
+    private void photosets(JsonWriter json) throws IOException {
+        json.name("photosets").beginObject()
+                .name("page").value(1)
+                .name("pages").value(1)
+                .name("perpage").value(account.getPhotosets())
+                .name("total").value(account.getPhotosets());
+        json.name("photoset").beginArray();
+        for (int s = 0; s < account.getPhotosets(); s++) {
+            json.beginObject()
+                    .name("id").value(String.valueOf(FIRST_SET + s))
+                    .name("primary").value(String.valueOf(FIRST_PHOTO + s * SET_STRIDE))
+                    .name("title").beginObject().name("_content").value(setTitle(s)).endObject()
+                    .name("photos").value(account.getPhotosPerSet())
+                    .name("videos").value(0)
+                    .name("date_update").value("1500000000")
+                    .endObject();
+        }
+        for (Map.Entry<String, CreatedSet> set : created.entrySet()) {
+            final List<String> photoIds = set.getValue().photoIds;
+            json.beginObject()
+                    .name("id").value(set.getKey())
+                    .name("primary").value(photoIds.get(0))
+                    .name("title").beginObject().name("_content").value(set.getValue().title).endObject()
+                    .name("photos").value(photoIds.size())
+                    .name("videos").value(0)
+                    .name("date_update").value(String.valueOf(photoIds.size()))
+                    .endObject();
+        }
+        json.endArray().endObject();
+    }
+
+    private static void fail(JsonWriter json, int code, String message) throws IOException {
+        json.name("stat").value("fail").name("code").value(code).name("message").value(message);
+        json.endObject();
+    }
+
+    private boolean photosetPhotos(JsonWriter json, Map<String, String> params) throws IOException {
+        final CreatedSet createdSet = created.get(params.get("photoset_id"));
+        if (createdSet != null) {
+            final List<String> photoIds = createdSet.photoIds;
+            final int page = page(params);
+            json.name("photoset").beginObject();
+            pageHeader(json, page, photoIds.size());
+            json.name("title").value(createdSet.title);
+            json.name("photo").beginArray();
+            for (int i = (page - 1) * PER_PAGE; i < Math.min(photoIds.size(), page * PER_PAGE); i++) {
+                photo(json, Long.parseLong(photoIds.get(i)));
+            }
+            json.endArray().endObject();
+            return true;
+        }
+
+        final long set = Long.parseLong(params.get("photoset_id")) - FIRST_SET;
+        if (set < 0 || set >= account.getPhotosets()) {
+            return false;
+        }
+        json.name("photoset");
+        photoPage(json, page(params), account.getPhotosPerSet(), FIRST_PHOTO + set * SET_STRIDE, setTitle((int) set));
+        return true;
+    }
+
+    /**
+     * Every photo of the account, the sets first
+     */
+    private void allPhotos(JsonWriter json, int page) throws IOException {
+        final int total = account.photos();
+        json.name("photos").beginObject();
+        pageHeader(json, page, total);
+        json.name("photo").beginArray();
+        final int from = (page - 1) * PER_PAGE;
+        for (int i = from; i < Math.min(total, from + PER_PAGE); i++) {
+            final int inSets = account.getPhotosets() * account.getPhotosPerSet();
+            if (i < inSets) {
+                photo(json, FIRST_PHOTO + (i / account.getPhotosPerSet()) * SET_STRIDE + i % account.getPhotosPerSet());
+            } else {
+                photo(json, NOT_IN_SET + i - inSets);
+            }
+        }
+        json.endArray().endObject();
+    }
+
+    private void photoPage(JsonWriter json, int page, int total, long firstId, String title) throws IOException {
+        json.beginObject();
+        pageHeader(json, page, total);
+        if (title != null) {
+            json.name("title").value(title);
+        }
+        json.name("photo").beginArray();
+        for (int i = (page - 1) * PER_PAGE; i < Math.min(total, page * PER_PAGE); i++) {
+            photo(json, firstId + i);
+        }
+        json.endArray().endObject();
+    }
+
+    private void pageHeader(JsonWriter json, int page, int total) throws IOException {
+        json.name("page").value(page)
+                .name("pages").value(Math.max(1, (total + PER_PAGE - 1) / PER_PAGE))
+                .name("perpage").value(PER_PAGE)
+                .name("total").value(total);
+    }
+
+    private void photo(JsonWriter json, long id) throws IOException {
+        json.beginObject()
+                .name("id").value(String.valueOf(id))
+                .name("title").value("photo " + id)
+                .name("url_o").value(baseUrl() + "/farm/" + id + "_o.jpg")
+                .name("datetaken").value("2017-06-01 12:00:00")
+                .name("dateupload").value("1500000000")
+                .name("lastupdate").value("1500000000")
+                .name("media").value("photo")
+                .endObject();
+    }
+
+    private void contexts(JsonWriter json, String photoId) throws IOException {
+        json.name("set").beginArray();
+        final long id = Long.parseLong(photoId);
+        if (id < NOT_IN_SET) {
+            final int set = (int) ((id - FIRST_PHOTO) / SET_STRIDE);
+            json.beginObject().name("id").value(String.valueOf(FIRST_SET + set)).name("title").value(setTitle(set)).endObject();
+        }
+        json.endArray();
+    }
+
+    private static String setTitle(int set) {
+        return "Set " + set;
+    }
+
+    private static int page(Map<String, String> params) {
+        final String page = params.get("page");
+        return page == null || page.isEmpty() ? 1 : Integer.parseInt(page);
+    }
+
+    /**
+     * Parameters of the query string and, for the write methods, of the posted form
+     */
+    private static Map<String, String> params(HttpExchange exchange) throws IOException {
+        final Map<String, String> params = new HashMap<>();
+        parse(exchange.getRequestURI().getRawQuery(), params);
+        if ("POST".equals(exchange.getRequestMethod())) {
+            final ByteArrayOutputStream form = new ByteArrayOutputStream();
+            final byte[] buffer = new byte[8192];
+            int n;
+            while ((n = exchange.getRequestBody().read(buffer)) > 0) {
+                form.write(buffer, 0, n);
+            }
+            parse(new String(form.toByteArray(), StandardCharsets.UTF_8), params);
+        }
+        return params;
+    }
+
+    private static void parse(String query, Map<String, String> params) throws UnsupportedEncodingException {
+        if (query == null || query.isEmpty()) {
+            return;
+        }
+        for (String pair : query.split("&")) {
+            final int eq = pair.indexOf('=');
+            if (eq > 0) {
+                params.put(URLDecoder.decode(pair.substring(0, eq), "UTF-8"), URLDecoder.decode(pair.substring(eq + 1), "UTF-8"));
+            }
+        }
+    }
+
+    /* ===================================================== */
+    /* static farm                                            */
+
+    private void file(HttpExchange exchange) throws IOException {
+        if (!FILE.matcher(exchange.getRequestURI().getPath()).matches()) {
+            exchange.sendResponseHeaders(404, -1);
+            return;
+        }
+        exchange.getResponseHeaders().set("Content-Type", "image/jpeg");
+        exchange.getResponseHeaders().set("Accept-Ranges", "bytes");
+        // Every file has the same content, it never changes so If-Range always matches
+        exchange.getResponseHeaders().set("ETag", "\"" + content.length + "\"");
+
+        long from = 0;
+        long to = content.length - 1;
+        int status = 200;
+        final String range = exchange.getRequestHeaders().getFirst("Range");
+        if (range != null) {
+            final Matcher matcher = RANGE.matcher(range);
+            if (!matcher.matches() || Long.parseLong(matcher.group(1)) >= content.length) {
+                exchange.getResponseHeaders().set("Content-Range", "bytes */" + content.length);
+                exchange.sendResponseHeaders(416, -1);
+                return;
+            }
+            from = Long.parseLong(matcher.group(1));
+            if (!matcher.group(2).isEmpty()) {
+                to = Math.min(to, Long.parseLong(matcher.group(2)));
+            }
+            status = 206;
+            exchange.getResponseHeaders().set("Content-Range", "bytes " + from + "-" + to + "/" + content.length);
+        }
+
+        final int length = (int) (to - from + 1);
+        if ("HEAD".equals(exchange.getRequestMethod())) {
+            exchange.getResponseHeaders().set("Content-Length", String.valueOf(length));
+            exchange.sendResponseHeaders(status, -1);
+            return;
+        }
+        exchange.sendResponseHeaders(status, length);
+        try (OutputStream out = exchange.getResponseBody()) {
+            out.write(content, (int) from, length);
+        }
+        if (range == null) {
+            filesServed.incrementAndGet();
+        }
+        bytesServed.addAndGet(length);
+    }
+}
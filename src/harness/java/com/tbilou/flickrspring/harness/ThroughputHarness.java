@@ -0,0 +1,150 @@
+package com.tbilou.flickrspring.harness;
+
+import com.tbilou.flickrspring.FlickrSpringApplication;
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.boot.builder.SpringApplicationBuilder;
+import org.springframework.context.ConfigurableApplicationContext;
+import org.springframework.web.client.RestTemplate;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Runs /backup/full against the flickr stand-in and an embedded broker and reports how
+ * fast the whole library ended up on disk.
+ * <p>
+ * Run it with {@code mvn -P harness -DskipTests verify}. The account and the stand-in
+ * are set with system properties:
+ * <ul>
+ * <li>harness.sets, harness.photos-per-set, harness.photos-not-in-set</li>
+ * <li>harness.file-size in bytes</li>
+ * <li>harness.latency in milliseconds and harness.error-rate between 0 and 1</li>
+ * <li>harness.timeout in seconds</li>
+ * </ul>
+ * Application properties can be changed with -Dexec.args, e.g. -Dexec.args=--listeners.download.batch.enabled=true
+ */
+@Slf4j
+public class ThroughputHarness {
+
+    public static void main(String[] args) throws Exception {
+        // The devtools restarter would run main again in a new class loader, starting a second stand-in and broker
+        System.setProperty("spring.devtools.restart.enabled", "false");
+
+        final FlickrStandIn.Account account = FlickrStandIn.Account.builder()
+                .photosets(Integer.getInteger("harness.sets", 20))
+                .photosPerSet(Integer.getInteger("harness.photos-per-set", 100))
+                .photosNotInSet(Integer.getInteger("harness.photos-not-in-set", 100))
+                .fileSize(Integer.getInteger("harness.file-size", 1024 * 1024))
+                .latency(Long.getLong("harness.latency", 20))
+                .errorRate(Double.parseDouble(System.getProperty("harness.error-rate", "0")))
+                .build();
+        final long timeout = TimeUnit.SECONDS.toNanos(Long.getLong("harness.timeout", 600));
+
+        final Path downloads = Files.createTempDirectory("flickr-harness");
+        try (FlickrStandIn standIn = new FlickrStandIn(account); EmbeddedBroker broker = new EmbeddedBroker()) {
+            standIn.start();
+            broker.start();
+
+            // Command line arguments, so they win over application.yml
+            final List<String> properties = new ArrayList<>(Arrays.asList(
+                    "--server.port=0",
+                    "--api.key=harness",
+                    "--api.secret=harness",
+                    "--oauth.token=harness",
+                    "--oauth.secret=harness",
+                    "--flickr.api.url=" + standIn.apiUrl(),
+                    // The stand-in has no rate limit, only the latency we gave it
+                    "--flickr.api.rate.hourly=100000000",
+                    "--flickr.api.rate.burst=1000",
+                    "--flickr.api.retry.initial-backoff=100",
+                    "--flickr.api.retry.max-backoff=2000",
+                    "--spring.rabbitmq.addresses=" + broker.address(),
+                    "--download.path=" + downloads,
+                    "--elasticsearch.enabled=false",
+                    "--logging.level.com.tbilou=WARN"));
+            properties.addAll(Arrays.asList(args));
+
+            final ConfigurableApplicationContext app = new SpringApplicationBuilder(FlickrSpringApplication.class)
+                    .run(properties.toArray(new String[0]));
+            try {
+                run(app, standIn, account, timeout);
+            } finally {
+                app.close();
+            }
+        } finally {
+            delete(downloads);
+        }
+    }
+
+    private static void run(ConfigurableApplicationContext app, FlickrStandIn standIn, FlickrStandIn.Account account, long timeout) throws InterruptedException {
+        final MeterRegistry registry = app.getBean(MeterRegistry.class);
+        final String port = app.getEnvironment().getProperty("local.server.port");
+        final int expected = account.photos();
+
+        log.warn("Backing up {} photos of {} bytes, {}ms latency, {} error rate",
+                expected, account.getFileSize(), account.getLatency(), account.getErrorRate());
+        final RestTemplate rest = new RestTemplate();
+        final long start = System.nanoTime();
+        final String job = "http://localhost:" + port + "/jobs/" + rest.getForObject("http://localhost:" + port + "/backup/full", Map.class).get("id");
+
+        long saved = 0;
+        long published = 0;
+        Map<?, ?> status = Collections.emptyMap();
+        long lastReport = start;
+        while (saved < expected && System.nanoTime() - start < timeout) {
+            Thread.sleep(100);
+            saved = saved(registry);
+            if (published == 0) {
+                status = rest.getForObject(job, Map.class);
+                if (!"QUEUED".equals(status.get("state")) && !"RUNNING".equals(status.get("state"))) {
+                    published = System.nanoTime() - start;
+                }
+            }
+            if (System.nanoTime() - lastReport > TimeUnit.SECONDS.toNanos(10)) {
+                log.warn("{} of {} photos saved", saved, expected);
+                lastReport = System.nanoTime();
+            }
+        }
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        // The downloads the job caused are still counted after it completed
+        final Map<?, ?> progress = rest.getForObject(job, Map.class);
+
+        final DistributionSummary bytes = registry.find("download.bytes").summary();
+        final double megabytes = (bytes == null ? 0 : bytes.totalAmount()) / (1024 * 1024);
+        System.out.println();
+        System.out.println("==================== throughput ====================");
+        System.out.printf("photos saved      %d of %d%s%n", saved, expected, saved < expected ? " (timed out)" : "");
+        System.out.printf("time to complete  %.1f s (job %s after %.1f s)%n", seconds, status.get("state"), published / 1e9);
+        System.out.printf("photos per second %.1f%n", saved / seconds);
+        System.out.printf("MB per second     %.1f%n", megabytes / seconds);
+        System.out.printf("api calls         %d%n", standIn.getApiCalls().get());
+        System.out.printf("job progress      %s pages fetched, %s messages published, %s downloads completed%n",
+                progress.get("pagesFetched"), progress.get("messagesPublished"), progress.get("downloadsCompleted"));
+        System.out.printf("errors injected   %d%n", standIn.getErrors().get());
+        System.out.printf("bytes served      %d%n", standIn.getBytesServed().get());
+        System.out.println("====================================================");
+    }
+
+    private static long saved(MeterRegistry registry) {
+        final Timer timer = registry.find("download.duration").tag("outcome", "saved").timer();
+        return timer == null ? 0 : timer.count();
+    }
+
+    private static void delete(Path directory) throws IOException {
+        try (Stream<Path> files = Files.walk(directory)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        }
+    }
+}
@@ -0,0 +1,84 @@
+package com.tbilou.flickrspring.benchmark;
+
+import com.google.gson.stream.JsonWriter;
+
+import java.io.IOException;
+import java.io.StringWriter;
+import java.io.UncheckedIOException;
+import java.io.Writer;
+
+/**
+ * Synthetic flickr responses shaped like the real ones
+ */
+public final class Fixtures {
+
+    private Fixtures() {
+    }
+
+    /**
+     * A flickr.photosets.getPhotos response with extras=url_o,date_taken
+     */
+    public static String photosetPage(int photos) {
+        try {
+            StringWriter out = new StringWriter();
+            JsonWriter writer = new JsonWriter(out);
+            writer.beginObject();
+            writer.name("photoset").beginObject();
+            writer.name("id").value("72157688888888888");
+            writer.name("primary").value("35701101");
+            writer.name("owner").value("12345678@N00");
+            writer.name("page").value(1);
+            writer.name("per_page").value(500);
+            writer.name("perpage").value(500);
+            writer.name("pages").value(3);
+            writer.name("title").value("Holidays 2017");
+            writer.name("total").value(1234);
+            writer.name("photo").beginArray();
+            for (int i = 0; i < photos; i++) {
+                writePhoto(writer, i);
+            }
+            writer.endArray();
+            writer.endObject();
+            writer.name("stat").value("ok");
+            writer.endObject();
+            writer.flush();
+            return out.toString();
+        } catch (IOException e) {
+            throw new UncheckedIOException(e);
+        }
+    }
+
+    /**
+     * A flickr.json catalog as written by /backup/all, photos spread over 2000-2019
+     */
+    public static void catalog(Writer out, int photos) throws IOException {
+        JsonWriter writer = new JsonWriter(out);
+        writer.beginArray();
+        for (int i = 0; i < photos; i++) {
+            writePhoto(writer, i);
+        }
+        writer.endArray();
+        writer.flush();
+    }
+
+    private static void writePhoto(JsonWriter writer, int i) throws IOException {
+        final String id = String.valueOf(35701101L + i);
+        writer.beginObject();
+        writer.name("id").value(id);
+        writer.name("secret").value("a1b2c3d4e5");
+        writer.name("server").value("4512");
+        writer.name("farm").value(5);
+        writer.name("title").value(i % 10 == 0 ? "" : "IMG_" + i);
+        writer.name("isprimary").value("0");
+        writer.name("ispublic").value(0);
+        writer.name("isfriend").value(0);
+        writer.name("isfamily").value(0);
+        writer.name("url_o").value("https://farm5.staticflickr.com/4512/" + id + "_f1e2d3c4b5_o.jpg");
+        writer.name("height_o").value("3024");
+        writer.name("width_o").value("4032");
+        writer.name("datetaken").value(String.format("%d-%02d-14 21:31:12", 2000 + i % 20, 1 + i % 12));
+        writer.name("datetakengranularity").value("0");
+        writer.name("media").value(i % 25 == 0 ? "video" : "photo");
+        writer.endObject();
+    }
+}
@@ -0,0 +1,85 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.benchmark.Fixtures;
+import com.tbilou.flickrspring.message.PhotoMessage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * /backup/byYear over a 200k photo flickr.json
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class PhotoCatalogBenchmark {
+
+    private static final int PHOTOS = 200_000;
+    private static final int YEAR = 2017;
+
+    private Path catalog;
+    private Map<Integer, List<PhotoCatalog.Entry>> byYear;
+
+    @Setup
+    public void setUp() throws IOException {
+        catalog = Files.createTempFile("flickr", ".json");
+        try (Writer writer = Files.newBufferedWriter(catalog, StandardCharsets.UTF_8)) {
+            Fixtures.catalog(writer, PHOTOS);
+        }
+        byYear = load();
+    }
+
+    @TearDown
+    public void tearDown() throws IOException {
+        Files.deleteIfExists(catalog);
+    }
+
+    /**
+     * What the first /backup/byYear pays, and every call after flickr.json changes
+     */
+    @Benchmark
+    public Map<Integer, List<PhotoCatalog.Entry>> loadCatalog() throws IOException {
+        return load();
+    }
+
+    /**
+     * What every other /backup/byYear pays before publishing
+     */
+    @Benchmark
+    public List<PhotoMessage> messagesForYear() {
+        final List<PhotoCatalog.Entry> entries = byYear.get(YEAR);
+        final List<PhotoMessage> messages = new ArrayList<>(entries.size());
+        for (PhotoCatalog.Entry entry : entries) {
+            messages.add(FlickrService.downloadMessage(entry, String.valueOf(YEAR)));
+        }
+        return messages;
+    }
+
+    private Map<Integer, List<PhotoCatalog.Entry>> load() throws IOException {
+        try (Reader reader = Files.newBufferedReader(catalog, StandardCharsets.UTF_8)) {
+            return PhotoCatalog.read(reader);
+        }
+    }
+}
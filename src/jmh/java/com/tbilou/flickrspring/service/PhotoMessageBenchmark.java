@@ -0,0 +1,89 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.benchmark.Fixtures;
+import com.tbilou.flickrspring.message.FlickrMessageConverter;
+import com.tbilou.flickrspring.message.PhotoMessage;
+import com.tbilou.flickrspring.model.Photo;
+import com.tbilou.flickrspring.model.PhotoPage;
+import com.tbilou.flickrspring.service.flickr.FlickrResponseReader;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * The per photo work of getPhotosInPhotoset (page to download messages on the wire)
+ * and of the download listener (wire to message)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class PhotoMessageBenchmark {
+
+    private final FlickrMessageConverter converter = new FlickrMessageConverter();
+
+    private String response;
+    private PhotoPage page;
+    private List<Message> typed;
+    private List<Message> legacy;
+
+    @Setup
+    public void setUp() throws IOException {
+        response = Fixtures.photosetPage(500);
+        page = FlickrResponseReader.readPhotoPage(new StringReader(response), "photoset");
+
+        // Same messages as the old producers sent them, a json string inside a json string
+        final Jackson2JsonMessageConverter jackson = new Jackson2JsonMessageConverter();
+        typed = new ArrayList<>();
+        legacy = new ArrayList<>();
+        for (Photo photo : page.getPhotos()) {
+            final PhotoMessage message = FlickrService.downloadMessage(photo, page.getTitle());
+            typed.add(converter.toMessage(message, new MessageProperties()));
+            legacy.add(jackson.toMessage(new com.google.gson.Gson().toJson(message), new MessageProperties()));
+        }
+    }
+
+    /**
+     * Parse a 500 photo page, build its download messages and encode them
+     */
+    @Benchmark
+    public void buildPageMessages(Blackhole bh) throws IOException {
+        final PhotoPage parsed = FlickrResponseReader.readPhotoPage(new StringReader(response), "photoset");
+        for (Photo photo : parsed.getPhotos()) {
+            bh.consume(converter.toMessage(FlickrService.downloadMessage(photo, parsed.getTitle()), new MessageProperties()));
+        }
+    }
+
+    @Benchmark
+    public void parseTypedMessages(Blackhole bh) {
+        for (Message message : typed) {
+            bh.consume(converter.fromMessage(message));
+        }
+    }
+
+    @Benchmark
+    public void parseLegacyMessages(Blackhole bh) {
+        for (Message message : legacy) {
+            bh.consume(converter.fromMessage(message));
+        }
+    }
+}
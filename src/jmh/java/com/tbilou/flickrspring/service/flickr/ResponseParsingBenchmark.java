@@ -0,0 +1,59 @@
+package com.tbilou.flickrspring.service.flickr;
+
+import com.google.gson.JsonArray;
+import com.jayway.jsonpath.Configuration;
+import com.jayway.jsonpath.JsonPath;
+import com.jayway.jsonpath.spi.json.GsonJsonProvider;
+import com.jayway.jsonpath.spi.mapper.GsonMappingProvider;
+import com.tbilou.flickrspring.benchmark.Fixtures;
+import com.tbilou.flickrspring.model.PhotoPage;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Reading a 500 photo getPhotos response, the way we used to (JsonPath over a gson tree)
+ * and the way we do now (streaming into the model)
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ResponseParsingBenchmark {
+
+    // Same providers FlickrSpringApplication sets as the JsonPath defaults
+    private final Configuration gson = Configuration.builder()
+            .jsonProvider(new GsonJsonProvider())
+            .mappingProvider(new GsonMappingProvider())
+            .build();
+
+    private String response;
+
+    @Setup
+    public void setUp() {
+        response = Fixtures.photosetPage(500);
+    }
+
+    @Benchmark
+    public JsonArray jsonPath() {
+        return JsonPath.using(gson).parse(response).read("$.photoset.photo");
+    }
+
+    @Benchmark
+    public PhotoPage streaming() throws IOException {
+        return FlickrResponseReader.readPhotoPage(new StringReader(response), "photoset");
+    }
+}
@@ -1,16 +1,83 @@
 package com.tbilou.flickrspring.config;
 
 import org.apache.http.client.config.RequestConfig;
+import org.apache.http.conn.ConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.DefaultConnectionKeepAliveStrategy;
 import org.apache.http.impl.client.HttpClientBuilder;
+import org.apache.http.impl.conn.PoolingHttpClientConnectionManager;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
 
+import java.util.concurrent.TimeUnit;
+
 @Configuration
 public class HttpClientConfig {
 
-    @Bean
+    @Value("${download.http.max-connections}")
+    private int maxConnections;
+
+    @Value("${download.http.max-connections-per-host}")
+    private int maxConnectionsPerHost;
+
+    @Value("${download.http.connect-timeout}")
+    private int connectTimeout;
+
+    @Value("${download.http.read-timeout}")
+    private int readTimeout;
+
+    @Value("${download.http.keep-alive}")
+    private long keepAlive;
+
+    @Value("${elasticsearch.http.connect-timeout}")
+    private int elasticsearchConnectTimeout;
+
+    @Value("${elasticsearch.http.read-timeout}")
+    private int elasticsearchReadTimeout;
+
+    /**
+     * Client used by the Elastic Search indexer. A hung connection must not hold its only thread
+     */
+    @Bean(destroyMethod = "close")
     public CloseableHttpClient httpClient() {
-        return HttpClientBuilder.create().setDefaultRequestConfig(RequestConfig.DEFAULT).build();
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(elasticsearchConnectTimeout)
+                .setConnectionRequestTimeout(elasticsearchConnectTimeout)
+                .setSocketTimeout(elasticsearchReadTimeout)
+                .build();
+        return HttpClientBuilder.create().setDefaultRequestConfig(requestConfig).build();
+    }
+
+    /**
+     * Client used to fetch the photos from the farmN.staticflickr.com hosts.
+     * Connections are pooled and kept alive so we don't pay a TLS handshake for every photo
+     */
+    @Bean(destroyMethod = "close")
+    public CloseableHttpClient downloadHttpClient() {
+        final PoolingHttpClientConnectionManager connectionManager = new PoolingHttpClientConnectionManager();
+        connectionManager.setMaxTotal(maxConnections);
+        // Each farm host is its own route
+        connectionManager.setDefaultMaxPerRoute(maxConnectionsPerHost);
+
+        final RequestConfig requestConfig = RequestConfig.custom()
+                .setConnectTimeout(connectTimeout)
+                .setConnectionRequestTimeout(connectTimeout)
+                .setSocketTimeout(readTimeout)
+                .build();
+
+        // Honor the server's Keep-Alive header, otherwise keep the connection for the configured time
+        final ConnectionKeepAliveStrategy keepAliveStrategy = (response, context) -> {
+            final long duration = DefaultConnectionKeepAliveStrategy.INSTANCE.getKeepAliveDuration(response, context);
+            return duration > 0 ? duration : keepAlive;
+        };
+
+        return HttpClientBuilder.create()
+                .setConnectionManager(connectionManager)
+                .setDefaultRequestConfig(requestConfig)
+                .setKeepAliveStrategy(keepAliveStrategy)
+                .evictExpiredConnections()
+                .evictIdleConnections(keepAlive, TimeUnit.MILLISECONDS)
+                .build();
     }
 }
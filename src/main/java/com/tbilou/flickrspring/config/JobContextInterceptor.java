@@ -0,0 +1,53 @@
+package com.tbilou.flickrspring.config;
+
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobContextHolder;
+import com.tbilou.flickrspring.service.job.JobService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.amqp.core.Message;
+
+import java.util.Optional;
+
+/**
+ * Makes the job that published a message the current job while a listener handles it,
+ * so the work it causes is counted against that job. Messages of a cancelled job are
+ * acked without being handled.
+ */
+@Slf4j
+@RequiredArgsConstructor
+public class JobContextInterceptor implements MethodInterceptor {
+
+    private final JobService jobService;
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        final Optional<Job> job = job(invocation.getArguments());
+        if (!job.isPresent()) {
+            return invocation.proceed();
+        }
+        if (job.get().isCancelRequested()) {
+            log.debug("Dropping message of cancelled job {}", job.get().getId());
+            ListenerMetricsInterceptor.skipped();
+            return null;
+        }
+        JobContextHolder.set(job.get());
+        try {
+            return invocation.proceed();
+        } finally {
+            JobContextHolder.clear();
+        }
+    }
+
+    private Optional<Job> job(Object[] arguments) {
+        for (Object argument : arguments) {
+            if (argument instanceof Message) {
+                final Object id = ((Message) argument).getMessageProperties().getHeaders().get(Job.HEADER);
+                return id == null ? Optional.empty() : jobService.find(id.toString());
+            }
+        }
+        return Optional.empty();
+    }
+}
@@ -0,0 +1,69 @@
+package com.tbilou.flickrspring.config;
+
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import org.aopalliance.intercept.MethodInterceptor;
+import org.aopalliance.intercept.MethodInvocation;
+import org.springframework.amqp.core.Message;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Times every message handled by the rabbit listeners, by queue and outcome.
+ * The count of the timer is the number of messages processed. Messages that needed
+ * no work, e.g. a photo already on disk, are counted as skipped so they don't pass
+ * for fast ones.
+ */
+@RequiredArgsConstructor
+public class ListenerMetricsInterceptor implements MethodInterceptor {
+
+    private static final ThreadLocal<Boolean> SKIPPED = new ThreadLocal<>();
+
+    private final MeterRegistry meterRegistry;
+
+    /**
+     * The message being handled on this thread needed no work
+     */
+    public static void skipped() {
+        SKIPPED.set(Boolean.TRUE);
+    }
+
+    @Override
+    public Object invoke(MethodInvocation invocation) throws Throwable {
+        final long start = System.nanoTime();
+        String outcome = "failure";
+        try {
+            final Object result = invocation.proceed();
+            outcome = SKIPPED.get() != null ? "skipped" : "success";
+            return result;
+        } finally {
+            SKIPPED.remove();
+            timer(meterRegistry, queue(invocation.getArguments()), outcome)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    /**
+     * The timer of a queue, for listeners that don't go through the container, e.g. the batch download one
+     *
+     * @param outcome success, failure or skipped
+     */
+    public static Timer timer(MeterRegistry meterRegistry, String queue, String outcome) {
+        return Timer.builder("rabbit.listener")
+                .description("Messages processed by the rabbit listeners")
+                .tag("queue", queue)
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    private static String queue(Object[] arguments) {
+        for (Object argument : arguments) {
+            if (argument instanceof Message && ((Message) argument).getMessageProperties().getConsumerQueue() != null) {
+                return ((Message) argument).getMessageProperties().getConsumerQueue();
+            }
+        }
+        return "unknown";
+    }
+}
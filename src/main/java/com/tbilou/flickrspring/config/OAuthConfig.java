@@ -5,6 +5,9 @@ import com.github.scribejava.apis.FlickrApi;
 import com.github.scribejava.core.builder.ServiceBuilder;
 import com.github.scribejava.core.model.OAuth1AccessToken;
 import com.github.scribejava.core.oauth.OAuthService;
+import com.github.scribejava.httpclient.okhttp.OkHttpHttpClient;
+import okhttp3.Dispatcher;
+import okhttp3.OkHttpClient;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -12,10 +15,24 @@ import org.springframework.context.annotation.Configuration;
 @Configuration
 public class OAuthConfig {
 
+    /**
+     * Uses OkHttp so requests can also be executed asynchronously without holding a thread
+     */
     @Bean
-    public OAuthService service(@Value("${api.key}") String apiKey, @Value("${api.secret}") String sharedSecret) {
+    public OAuthService service(@Value("${api.key}") String apiKey, @Value("${api.secret}") String sharedSecret,
+                                @Value("${flickr.api.async.max-in-flight}") int maxInFlight) {
+        final Dispatcher dispatcher = new Dispatcher();
+        dispatcher.setMaxRequests(maxInFlight);
+        // All the calls go to api.flickr.com
+        dispatcher.setMaxRequestsPerHost(maxInFlight);
+
+        final OkHttpClient client = new OkHttpClient.Builder()
+                .dispatcher(dispatcher)
+                .build();
+
         return new ServiceBuilder(apiKey)
                 .apiSecret(sharedSecret)
+                .httpClient(new OkHttpHttpClient(client))
                 .build(FlickrApi.instance());
     }
 
@@ -1,5 +1,9 @@
 package com.tbilou.flickrspring.config;
 
+import com.tbilou.flickrspring.message.FlickrMessageConverter;
+import com.tbilou.flickrspring.service.job.JobHeaderPostProcessor;
+import com.tbilou.flickrspring.service.job.JobService;
+import io.micrometer.core.instrument.MeterRegistry;
 import lombok.RequiredArgsConstructor;
 import org.springframework.amqp.core.Queue;
 import org.springframework.amqp.rabbit.annotation.EnableRabbit;
@@ -7,7 +11,6 @@ import org.springframework.amqp.rabbit.config.SimpleRabbitListenerContainerFacto
 import org.springframework.amqp.rabbit.connection.CachingConnectionFactory;
 import org.springframework.amqp.rabbit.connection.ConnectionFactory;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
-import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.context.annotation.Bean;
 import org.springframework.context.annotation.Configuration;
@@ -20,6 +23,8 @@ import org.springframework.messaging.handler.annotation.support.DefaultMessageHa
 public class RabbitMqConfig {
 
     private final CachingConnectionFactory cachingConnectionFactory;
+    private final MeterRegistry meterRegistry;
+    private final JobService jobService;
 
     @Value("${queue.flickr.photosets.photos}")
     private String queuePhotos;
@@ -60,13 +65,14 @@ public class RabbitMqConfig {
     @Bean
     public RabbitTemplate rabbitTemplate(final ConnectionFactory connectionFactory) {
         final RabbitTemplate rabbitTemplate = new RabbitTemplate(connectionFactory);
-        rabbitTemplate.setMessageConverter(producerJackson2MessageConverter());
+        rabbitTemplate.setMessageConverter(flickrMessageConverter());
+        rabbitTemplate.setBeforePublishPostProcessors(new JobHeaderPostProcessor());
         return rabbitTemplate;
     }
 
     @Bean
-    public Jackson2JsonMessageConverter producerJackson2MessageConverter() {
-        return new Jackson2JsonMessageConverter();
+    public FlickrMessageConverter flickrMessageConverter() {
+        return new FlickrMessageConverter();
     }
 
 
@@ -87,9 +93,9 @@ public class RabbitMqConfig {
     public SimpleRabbitListenerContainerFactory rabbitListenerContainerFactory() {
         SimpleRabbitListenerContainerFactory factory = new SimpleRabbitListenerContainerFactory();
         factory.setConnectionFactory(cachingConnectionFactory);
-        factory.setConcurrentConsumers(3);
-        factory.setMaxConcurrentConsumers(10);
-        factory.setMessageConverter(producerJackson2MessageConverter());
+        // Each listener sets its consumers with listeners.<id>.concurrency
+        factory.setMessageConverter(flickrMessageConverter());
+        factory.setAdviceChain(new ListenerMetricsInterceptor(meterRegistry), new JobContextInterceptor(jobService));
         return factory;
     }
 
@@ -1,6 +1,9 @@
 package com.tbilou.flickrspring.controller;
 
 import com.tbilou.flickrspring.service.FlickrService;
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobService;
+import com.tbilou.flickrspring.service.job.JobType;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -20,6 +23,7 @@ import java.io.IOException;
 @RequestMapping(value = "/backup/")
 public class FlickrBackupController {
     private final FlickrService flickrService;
+    private final JobService jobService;
 
     /**
      * Starts the entire backup process
@@ -28,17 +32,21 @@ public class FlickrBackupController {
      * taking into account if a set has more than 500 photos it creates a message for each page
      * <p>
      * REST -> PhotosetListener -> Download
+     *
+     * @return the job sending the messages, see /jobs/{id}
      */
     @RequestMapping(value = "/full",
             method = RequestMethod.GET,
             produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity photosets() {
+    public ResponseEntity<Job> photosets() {
 
         // kickstart the backup process
-        flickrService.getPhotosetsList();
-        flickrService.getPhotosNotInSet();
+        final Job job = jobService.start(JobType.FULL_BACKUP, "Full backup", () -> {
+            flickrService.getPhotosetsList();
+            flickrService.getPhotosNotInSet();
+        });
 
-        return new ResponseEntity<>(HttpStatus.OK);
+        return JobController.accepted(job);
     }
 
     /**
@@ -49,22 +57,24 @@ public class FlickrBackupController {
     @RequestMapping(value = "/recent",
             method = RequestMethod.GET,
             produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity recentlyUpdated() {
-        flickrService.recentlyUpdated();
-        return new ResponseEntity<>(HttpStatus.OK);
+    public ResponseEntity<Job> recentlyUpdated() {
+        final Job job = jobService.start(JobType.RECENT_UPDATES, "Recently updated photos", flickrService::recentlyUpdated);
+        return JobController.accepted(job);
     }
 
     /**
-     * Use it with curl > flickr.json to create a Json file with all the data from flickr for analysis
+     * Saves a Json file (catalog.path) with all the data from flickr for analysis
+     * <p>
+     * The photos are written page by page as they are fetched from flickr
      *
-     * @return
+     * @return the job writing the file, see /jobs/{id}
      */
     @RequestMapping(value = "/all",
             method = RequestMethod.GET,
             produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity allPhotos() {
-        final String result = flickrService.createFullListOfPhotos();
-        return new ResponseEntity<>(result, HttpStatus.OK);
+    public ResponseEntity<Job> allPhotos() {
+        final Job job = jobService.start(JobType.CATALOG, "Catalog of all photos", flickrService::saveCatalog);
+        return JobController.accepted(job);
     }
 
     /**
@@ -1,9 +1,12 @@
 package com.tbilou.flickrspring.controller;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.tbilou.flickrspring.message.PhotoMessage;
+import com.tbilou.flickrspring.message.PhotosetPageMessage;
 import com.tbilou.flickrspring.service.DownloadService;
 import com.tbilou.flickrspring.service.FlickrService;
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobService;
+import com.tbilou.flickrspring.service.job.JobType;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
 import org.springframework.http.HttpStatus;
@@ -24,6 +27,7 @@ import java.time.ZoneOffset;
 public class FlickrController {
     private final FlickrService flickrService;
     private final DownloadService downloadService;
+    private final JobService jobService;
 
     /**
      * Allows us to download an entire set.
@@ -49,16 +53,14 @@ public class FlickrController {
      * Allows you to download a specific page of a set.
      * If the set has more than 500 pages you need to specify which page you want
      *
-     * @param json {id:"64354684", name:"SomeSet", page:"1"}
+     * @param photoset {id:"64354684", setName:"SomeSet", page:"1"}
      */
     @RequestMapping(value = "/photoset",
             method = RequestMethod.PUT,
             consumes = MediaType.APPLICATION_JSON_VALUE,
             produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity getPageForSet(@RequestBody String json) {
+    public ResponseEntity getPageForSet(@RequestBody PhotosetPageMessage photoset) {
 
-        // Convert json into an Object
-        JsonObject photoset = new JsonParser().parse(json).getAsJsonObject();
         flickrService.getPhotosInPhotoset(photoset);
 
         return new ResponseEntity<>(HttpStatus.OK);
@@ -67,36 +69,30 @@ public class FlickrController {
     /**
      * Allows us to download a single photo from flickr
      *
-     * @param json {"id":"35701101", "title":"IMG_7654", "url":"https://farm5.staticflickr.com/.../35701101_o.jpg", "photosetName":"SomeSet"}
+     * @param photo {"id":"35701101", "title":"IMG_7654", "url":"https://farm5.staticflickr.com/.../35701101_o.jpg", "photosetName":"SomeSet"}
      */
     @RequestMapping(value = "/photo",
             method = RequestMethod.PUT,
             consumes = MediaType.APPLICATION_JSON_VALUE,
             produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity downloadPhoto(@RequestBody String json) {
+    public ResponseEntity downloadPhoto(@RequestBody PhotoMessage photo) {
 
-        // Convert json into an Object
-        JsonObject photo = new JsonParser().parse(json).getAsJsonObject();
-        downloadService.downloadAndSave(
-                photo.get("url").getAsString(),
-                photo.get("title").getAsString(),
-                photo.get("photosetName").getAsString(),
-                photo.get("id").getAsString()
-        );
+        downloadService.downloadAndSave(photo.getUrl(), photo.getTitle(), photo.getPhotosetName(), photo.getId());
 
         return new ResponseEntity<>(HttpStatus.OK);
     }
 
     /**
      *  Create a photoset will all photos for a give year
+     *
+     * @return the job doing it, see /jobs/{id}
      */
     @RequestMapping(value = "/photosets/{year}",
             method = RequestMethod.PUT,
             produces = MediaType.APPLICATION_JSON_VALUE)
-    public ResponseEntity addPhotosToPhotoset(@PathVariable Integer year) {
-
-        flickrService.createPhotosetWithPhotosFromYear(year);
-
-        return new ResponseEntity<>(HttpStatus.OK);
+    public ResponseEntity<Job> addPhotosToPhotoset(@PathVariable Integer year) {
+        final Job job = jobService.start(JobType.YEAR_PHOTOSET, "Photoset for " + year,
+                () -> flickrService.createPhotosetWithPhotosFromYear(year));
+        return JobController.accepted(job);
     }
 }
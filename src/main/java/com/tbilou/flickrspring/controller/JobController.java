@@ -0,0 +1,69 @@
+package com.tbilou.flickrspring.controller;
+
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobService;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.MediaType;
+import org.springframework.http.ResponseEntity;
+import org.springframework.stereotype.Controller;
+import org.springframework.web.bind.annotation.PathVariable;
+import org.springframework.web.bind.annotation.RequestMapping;
+import org.springframework.web.bind.annotation.RequestMethod;
+
+import java.net.URI;
+import java.util.List;
+
+/**
+ * Progress and cancellation of the background jobs started by /backup and /flickr/photosets
+ */
+@Slf4j
+@Controller
+@RequiredArgsConstructor
+@RequestMapping(value = "/jobs")
+public class JobController {
+    private final JobService jobService;
+
+    /**
+     * All the jobs still running and the last finished ones, newest first
+     */
+    @RequestMapping(method = RequestMethod.GET,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<List<Job>> jobs() {
+        return new ResponseEntity<>(jobService.list(), HttpStatus.OK);
+    }
+
+    /**
+     * State of a job and how many pages it fetched, messages it published and downloads it caused
+     */
+    @RequestMapping(value = "/{id}",
+            method = RequestMethod.GET,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Job> job(@PathVariable String id) {
+        return jobService.find(id)
+                .map(job -> new ResponseEntity<>(job, HttpStatus.OK))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
+    }
+
+    /**
+     * Stops the job, the messages it already published are dropped
+     */
+    @RequestMapping(value = "/{id}",
+            method = RequestMethod.DELETE,
+            produces = MediaType.APPLICATION_JSON_VALUE)
+    public ResponseEntity<Job> cancel(@PathVariable String id) {
+        return jobService.cancel(id)
+                .map(job -> new ResponseEntity<>(job, HttpStatus.OK))
+                .orElseGet(() -> new ResponseEntity<>(HttpStatus.NOT_FOUND));
+    }
+
+    /**
+     * 202 with the job and where to follow it
+     */
+    static ResponseEntity<Job> accepted(Job job) {
+        return ResponseEntity.accepted()
+                .location(URI.create("/jobs/" + job.getId()))
+                .body(job);
+    }
+}
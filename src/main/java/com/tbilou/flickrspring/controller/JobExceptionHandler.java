@@ -0,0 +1,36 @@
+package com.tbilou.flickrspring.controller;
+
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobAlreadyRunningException;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.http.HttpStatus;
+import org.springframework.http.ResponseEntity;
+import org.springframework.web.bind.annotation.ControllerAdvice;
+import org.springframework.web.bind.annotation.ExceptionHandler;
+
+import java.net.URI;
+import java.util.concurrent.RejectedExecutionException;
+
+@Slf4j
+@ControllerAdvice
+public class JobExceptionHandler {
+
+    /**
+     * 409 with the job that is already running
+     */
+    @ExceptionHandler(JobAlreadyRunningException.class)
+    public ResponseEntity<Job> alreadyRunning(JobAlreadyRunningException e) {
+        log.info(e.getMessage());
+        return ResponseEntity.status(HttpStatus.CONFLICT)
+                .location(URI.create("/jobs/" + e.getRunning().getId()))
+                .body(e.getRunning());
+    }
+
+    /**
+     * The job executor is shutting down
+     */
+    @ExceptionHandler(RejectedExecutionException.class)
+    public ResponseEntity<Void> rejected(RejectedExecutionException e) {
+        return new ResponseEntity<>(HttpStatus.SERVICE_UNAVAILABLE);
+    }
+}
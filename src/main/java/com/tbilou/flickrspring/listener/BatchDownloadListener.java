@@ -0,0 +1,264 @@
+package com.tbilou.flickrspring.listener;
+
+import com.rabbitmq.client.AMQP;
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.DefaultConsumer;
+import com.rabbitmq.client.Envelope;
+import com.tbilou.flickrspring.config.ListenerMetricsInterceptor;
+import com.tbilou.flickrspring.message.FlickrMessageConverter;
+import com.tbilou.flickrspring.message.PhotoMessage;
+import com.tbilou.flickrspring.service.DownloadService;
+import com.tbilou.flickrspring.service.HttpStatusException;
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobService;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.amqp.rabbit.support.MessagePropertiesConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Consumes the download queue in batches instead of one message at a time.
+ * <p>
+ * Up to batch.size messages are collected, waiting at most batch.receive-timeout for
+ * the batch to fill up. The photos of a batch are downloaded in parallel, grouped by
+ * folder, and the batch is acked once every file is on disk. Photos that failed are
+ * given back to the queue, unless the server answered with a client error, e.g. 404 or 410. Each download is timed like the messages of the other listeners.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+@ConditionalOnExpression("${listeners.download.enabled} and ${listeners.download.batch.enabled}")
+public class BatchDownloadListener {
+
+    private final ConnectionFactory connectionFactory;
+    private final FlickrMessageConverter flickrMessageConverter;
+    private final DownloadService downloadService;
+    private final JobService jobService;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${queue.flickr.download}")
+    private String queueDownload;
+
+    @Value("${listeners.download.batch.size}")
+    private int batchSize;
+
+    @Value("${listeners.download.batch.receive-timeout}")
+    private long receiveTimeout;
+
+    @Value("${listeners.download.batch.prefetch}")
+    private int prefetch;
+
+    @Value("${listeners.download.batch.threads}")
+    private int threads;
+
+    @Value("${listeners.download.batch.reconnect-delay}")
+    private long reconnectDelay;
+
+    private final MessagePropertiesConverter propertiesConverter = new DefaultMessagePropertiesConverter();
+
+    private ExecutorService executor;
+    private Thread consumer;
+    private volatile boolean running;
+
+    @PostConstruct
+    public void init() {
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "download-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+
+        running = true;
+        consumer = new Thread(this::run, "download-batch-consumer");
+        consumer.setDaemon(true);
+        consumer.start();
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        running = false;
+        consumer.interrupt();
+        consumer.join(reconnectDelay);
+        executor.shutdownNow();
+    }
+
+    private void run() {
+        while (running) {
+            try {
+                final Connection connection = connectionFactory.createConnection();
+                try {
+                    final Channel channel = connection.createChannel(false);
+                    try {
+                        consume(channel);
+                    } finally {
+                        if (channel.isOpen()) {
+                            channel.close();
+                        }
+                    }
+                } finally {
+                    connection.close();
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            } catch (IOException | TimeoutException | RuntimeException e) {
+                // Acks on a channel that died throw ShutdownSignalException, this thread is the only consumer
+                log.warn("Download consumer lost its channel, reconnecting in {}ms - {}", reconnectDelay, e.getMessage());
+                try {
+                    Thread.sleep(reconnectDelay);
+                } catch (InterruptedException ie) {
+                    Thread.currentThread().interrupt();
+                    return;
+                }
+            }
+        }
+    }
+
+    private void consume(Channel channel) throws IOException, InterruptedException {
+        // The broker only sends this many messages ahead of our acks
+        channel.basicQos(prefetch);
+
+        final BlockingQueue<Message> deliveries = new LinkedBlockingQueue<>();
+        final String consumerTag = channel.basicConsume(queueDownload, false, new DefaultConsumer(channel) {
+            @Override
+            public void handleDelivery(String consumerTag, Envelope envelope, AMQP.BasicProperties properties, byte[] body) {
+                deliveries.add(new Message(body, propertiesConverter.toMessageProperties(properties, envelope, StandardCharsets.UTF_8.name())));
+            }
+        });
+        log.info("Consuming {} in batches of {}", queueDownload, batchSize);
+
+        try {
+            final List<Message> batch = new ArrayList<>(batchSize);
+            while (running && channel.isOpen()) {
+                final Message first = deliveries.poll(receiveTimeout, TimeUnit.MILLISECONDS);
+                if (first == null) {
+                    continue;
+                }
+                batch.add(first);
+
+                // Give the rest of the batch a little time to arrive
+                final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(receiveTimeout);
+                while (batch.size() < batchSize) {
+                    final Message next = deliveries.poll(deadline - System.nanoTime(), TimeUnit.NANOSECONDS);
+                    if (next == null) {
+                        break;
+                    }
+                    batch.add(next);
+                }
+
+                process(channel, batch);
+                batch.clear();
+            }
+        } finally {
+            if (channel.isOpen()) {
+                channel.basicCancel(consumerTag);
+            }
+        }
+    }
+
+    private void process(Channel channel, List<Message> batch) throws IOException, InterruptedException {
+        final List<PhotoMessage> photos = new ArrayList<>(batch.size());
+        final List<Long> tags = new ArrayList<>(batch.size());
+        final List<Optional<Job>> jobs = new ArrayList<>(batch.size());
+        for (Message message : batch) {
+            final long tag = message.getMessageProperties().getDeliveryTag();
+            final Object jobId = message.getMessageProperties().getHeaders().get(Job.HEADER);
+            final Optional<Job> job = jobId == null ? Optional.empty() : jobService.find(jobId.toString());
+            if (job.isPresent() && job.get().isCancelRequested()) {
+                log.debug("Dropping download of cancelled job {}", jobId);
+                ListenerMetricsInterceptor.timer(meterRegistry, queueDownload, "skipped").record(0, TimeUnit.NANOSECONDS);
+                channel.basicAck(tag, false);
+                continue;
+            }
+            try {
+                photos.add((PhotoMessage) flickrMessageConverter.fromMessage(message));
+                tags.add(tag);
+                jobs.add(job);
+            } catch (MessageConversionException | ClassCastException e) {
+                // Retrying won't make it readable
+                log.error("Dropping unreadable download message - {}", e.getMessage());
+                channel.basicNack(tag, false, false);
+            }
+        }
+
+        // Photos going to the same folder are downloaded together
+        final List<Integer> order = new ArrayList<>(photos.size());
+        for (int i = 0; i < photos.size(); i++) {
+            order.add(i);
+        }
+        order.sort(Comparator.comparing(i -> String.valueOf(photos.get(i).getPhotosetName())));
+
+        final CompletableFuture<?>[] downloads = new CompletableFuture<?>[photos.size()];
+        for (int i : order) {
+            final PhotoMessage photo = photos.get(i);
+            downloads[i] = CompletableFuture.runAsync(() -> download(photo), executor);
+        }
+
+        int failed = 0;
+        final boolean[] permanent = new boolean[downloads.length];
+        for (int i = 0; i < downloads.length; i++) {
+            try {
+                downloads[i].get();
+                jobs.get(i).ifPresent(Job::downloadCompleted);
+            } catch (ExecutionException e) {
+                failed++;
+                permanent[i] = HttpStatusException.isPermanent(e.getCause());
+                log.warn("Unable to download photo {}{} - {}", photos.get(i).getId(), permanent[i] ? ", dropping it" : "", e.getCause().getMessage());
+            }
+        }
+
+        if (failed == 0 && !tags.isEmpty()) {
+            // Every earlier delivery was already settled, one ack covers the whole batch
+            channel.basicAck(tags.get(tags.size() - 1), true);
+        } else {
+            for (int i = 0; i < downloads.length; i++) {
+                if (downloads[i].isCompletedExceptionally()) {
+                    // Asking again won't bring back a photo that is gone
+                    channel.basicNack(tags.get(i), false, !permanent[i]);
+                } else {
+                    channel.basicAck(tags.get(i), false);
+                }
+            }
+        }
+        log.info("Downloaded a batch of {} photos, {} failed", photos.size(), failed);
+    }
+
+    private void download(PhotoMessage photo) {
+        final long start = System.nanoTime();
+        String outcome = "failure";
+        try {
+            final boolean saved = downloadService.downloadAndSave(photo.getUrl(), photo.getTitle(), photo.getPhotosetName(), photo.getId());
+            outcome = saved ? "success" : "skipped";
+        } finally {
+            ListenerMetricsInterceptor.timer(meterRegistry, queueDownload, outcome)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+}
@@ -1,7 +1,6 @@
 package com.tbilou.flickrspring.listener;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.tbilou.flickrspring.message.PhotoMessage;
 import com.tbilou.flickrspring.service.FlickrService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -20,14 +19,12 @@ public class FlickrContextListener {
     /**
      * Gets the photoset name for a given photo id
      *
-     * @param json {"id":"35701101", "title":"IMG_7654", "url":"https://farm5.staticflickr.com/.../35701101_o.jpg"}
+     * @param photo {"id":"35701101", "title":"IMG_7654", "url":"https://farm5.staticflickr.com/.../35701101_o.jpg"}
      */
-    @RabbitListener(queues = "${queue.flickr.context}")
-    public void getPhotosetForPhoto(String json) {
-        log.info("Getting Photoset name for request {}", json);
+    @RabbitListener(id = "context", queues = "${queue.flickr.context}", concurrency = "${listeners.context.concurrency}")
+    public void getPhotosetForPhoto(PhotoMessage photo) {
+        log.info("Getting Photoset name for request {}", photo);
 
-        // Convert json into an Object
-        JsonObject photoset = new JsonParser().parse(json).getAsJsonObject();
-        flickrService.getPhotosetNameForPhoto(photoset);
+        flickrService.getPhotosetNameForPhoto(photo);
     }
 }
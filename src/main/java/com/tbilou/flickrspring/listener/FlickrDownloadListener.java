@@ -1,18 +1,22 @@
 package com.tbilou.flickrspring.listener;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.tbilou.flickrspring.config.ListenerMetricsInterceptor;
+import com.tbilou.flickrspring.message.PhotoMessage;
 import com.tbilou.flickrspring.service.DownloadService;
+import com.tbilou.flickrspring.service.HttpStatusException;
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobContextHolder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpRejectAndDontRequeueException;
 import org.springframework.amqp.rabbit.annotation.RabbitListener;
-import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnExpression;
 import org.springframework.stereotype.Service;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
-@ConditionalOnProperty("listeners.download.enabled")
+@ConditionalOnExpression("${listeners.download.enabled} and !${listeners.download.batch.enabled}")
 public class FlickrDownloadListener {
 
     private final DownloadService downloadService;
@@ -20,19 +24,23 @@ public class FlickrDownloadListener {
     /**
      * Downloads a photo to disk
      *
-     * @param json {"id":"35701101", "title":"IMG_7654", "url":"https://farm5.staticflickr.com/.../35701101_o.jpg", "photosetName":"SomePhotoset"}
+     * @param photo {"id":"35701101", "title":"IMG_7654", "url":"https://farm5.staticflickr.com/.../35701101_o.jpg", "photosetName":"SomePhotoset"}
      */
-    @RabbitListener(queues = "${queue.flickr.download}")
-    public void downloadPhoto(String json) {
-        log.info("Getting information about Photo to download {}", json);
+    @RabbitListener(id = "download", queues = "${queue.flickr.download}", concurrency = "${listeners.download.concurrency}")
+    public void downloadPhoto(PhotoMessage photo) {
+        log.info("Getting information about Photo to download {}", photo);
 
-        // Convert json into an Object
-        JsonObject photo = new JsonParser().parse(json).getAsJsonObject();
-        downloadService.downloadAndSave(
-                photo.get("url").getAsString(),
-                photo.get("title").getAsString(),
-                photo.get("photosetName").getAsString(),
-                photo.get("id").getAsString()
-        );
+        try {
+            if (!downloadService.downloadAndSave(photo.getUrl(), photo.getTitle(), photo.getPhotosetName(), photo.getId())) {
+                ListenerMetricsInterceptor.skipped();
+            }
+        } catch (RuntimeException e) {
+            if (HttpStatusException.isPermanent(e)) {
+                // Requeueing a photo that is gone would only fail again
+                throw new AmqpRejectAndDontRequeueException("Dropping download of photo " + photo.getId(), e);
+            }
+            throw e;
+        }
+        JobContextHolder.current().ifPresent(Job::downloadCompleted);
     }
 }
@@ -1,7 +1,6 @@
 package com.tbilou.flickrspring.listener;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.tbilou.flickrspring.message.AddToPhotosetMessage;
 import com.tbilou.flickrspring.service.FlickrService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -20,14 +19,12 @@ public class FlickrPhotosetAddListener {
     /**
      * Create a message for each image found in this set page
      *
-     * @param json {photoId:"123654", photosetId:"77612536123234234111"}
+     * @param msg {photoId:"123654", photosetId:"77612536123234234111"}
      */
-    @RabbitListener(queues = "${queue.flickr.photosets.add}")
-    public void addPhotoToPhotoset(String json) {
-        log.info("Adding photo to photoset {}", json);
+    @RabbitListener(id = "photosets.add", queues = "${queue.flickr.photosets.add}", concurrency = "${listeners.photosets.add.concurrency}")
+    public void addPhotoToPhotoset(AddToPhotosetMessage msg) {
+        log.info("Adding photo to photoset {}", msg);
 
-        // Convert json into an Object
-        JsonObject msg = new JsonParser().parse(json).getAsJsonObject();
         flickrService.addPhotoToPhotoset(msg);
     }
 
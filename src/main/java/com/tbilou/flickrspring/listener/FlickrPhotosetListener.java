@@ -1,7 +1,6 @@
 package com.tbilou.flickrspring.listener;
 
-import com.google.gson.JsonObject;
-import com.google.gson.JsonParser;
+import com.tbilou.flickrspring.message.PhotosetPageMessage;
 import com.tbilou.flickrspring.service.FlickrService;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
@@ -20,14 +19,12 @@ public class FlickrPhotosetListener {
     /**
      * Create a message for each image found in this set page
      *
-     * @param json {id:"123654", name:"SomePhotoset", page:"1"}
+     * @param photoset {id:"123654", setName:"SomePhotoset", page:1}
      */
-    @RabbitListener(queues = "${queue.flickr.photosets.photos}")
-    public void getPhotosInPhotoset(String json) {
-        log.info("Getting information about Photoset {}", json);
+    @RabbitListener(id = "photosets", queues = "${queue.flickr.photosets.photos}", concurrency = "${listeners.photosets.concurrency}")
+    public void getPhotosInPhotoset(PhotosetPageMessage photoset) {
+        log.info("Getting information about Photoset {}", photoset);
 
-        // Convert json into an Object
-        JsonObject photoset = new JsonParser().parse(json).getAsJsonObject();
         flickrService.getPhotosInPhotoset(photoset);
     }
 
@@ -0,0 +1,224 @@
+package com.tbilou.flickrspring.listener;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.AmqpAdmin;
+import org.springframework.amqp.rabbit.core.RabbitAdmin;
+import org.springframework.amqp.rabbit.listener.MessageListenerContainer;
+import org.springframework.amqp.rabbit.listener.RabbitListenerEndpointRegistry;
+import org.springframework.amqp.rabbit.listener.SimpleMessageListenerContainer;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.boot.autoconfigure.condition.ConditionalOnProperty;
+import org.springframework.core.env.Environment;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Sizes the consumers of each rabbit listener from how its messages are doing, instead of
+ * a fixed range for every queue.
+ * <p>
+ * Every listeners.concurrency.interval the latency and failures of the messages handled
+ * since the last look are compared with the best latency of the last listeners.concurrency.window
+ * looks. Messages that needed no work are timed apart and left out. While the latency
+ * stays within tolerance of it and messages are waiting, consumers are added. Once more
+ * consumers only make each message slower, e.g. the link is saturated or the api calls are
+ * waiting for the rate limiter, they are removed in proportion. When too many messages
+ * fail the consumers are cut by listeners.concurrency.backoff.
+ * <p>
+ * The bounds of the listener with id x are listeners.x.concurrency, "min-max".
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+@ConditionalOnProperty("listeners.concurrency.adaptive")
+public class ListenerConcurrencyController {
+
+    private final RabbitListenerEndpointRegistry rabbitListenerEndpointRegistry;
+    private final AmqpAdmin amqpAdmin;
+    private final MeterRegistry meterRegistry;
+    private final Environment environment;
+
+    @Value("${listeners.concurrency.interval}")
+    private long interval;
+
+    @Value("${listeners.concurrency.window}")
+    private int window;
+
+    @Value("${listeners.concurrency.tolerance}")
+    private double tolerance;
+
+    @Value("${listeners.concurrency.max-error-rate}")
+    private double maxErrorRate;
+
+    @Value("${listeners.concurrency.backoff}")
+    private double backoff;
+
+    private final Map<String, Limit> limits = new ConcurrentHashMap<>();
+
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "listener-concurrency");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::adjust, interval, interval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
+
+    private void adjust() {
+        for (String id : rabbitListenerEndpointRegistry.getListenerContainerIds()) {
+            final MessageListenerContainer container = rabbitListenerEndpointRegistry.getListenerContainer(id);
+            if (!(container instanceof SimpleMessageListenerContainer) || !container.isRunning()) {
+                continue;
+            }
+            try {
+                adjust(id, (SimpleMessageListenerContainer) container);
+            } catch (AmqpException | IllegalArgumentException e) {
+                log.warn("Unable to adjust the consumers of listener {} - {}", id, e.getMessage());
+            }
+        }
+    }
+
+    private void adjust(String id, SimpleMessageListenerContainer container) {
+        final String queue = container.getQueueNames()[0];
+        Limit limit = limits.get(id);
+        if (limit == null) {
+            limit = newLimit(id, queue);
+            limits.put(id, limit);
+            // We size the listener from now on, not the container
+            apply(container, limit.consumers(), Integer.MAX_VALUE);
+            return;
+        }
+
+        final Timer success = meterRegistry.find("rabbit.listener").tags("queue", queue, "outcome", "success").timer();
+        final Timer failure = meterRegistry.find("rabbit.listener").tags("queue", queue, "outcome", "failure").timer();
+        final long failed = failure == null ? 0 : failure.count();
+        final long count = failed + (success == null ? 0 : success.count());
+        final double time = (success == null ? 0 : success.totalTime(TimeUnit.NANOSECONDS))
+                + (failure == null ? 0 : failure.totalTime(TimeUnit.NANOSECONDS));
+
+        final int before = limit.consumers();
+        final int after = limit.update(count, failed, time, waiting(queue) > 0, tolerance, maxErrorRate, backoff);
+        if (after != before) {
+            log.info("Listener {} goes from {} to {} consumers", id, before, after);
+            apply(container, after, before);
+        }
+    }
+
+    private Limit newLimit(String id, String queue) {
+        final String concurrency = environment.getProperty("listeners." + id + ".concurrency");
+        if (concurrency == null) {
+            throw new IllegalArgumentException("listeners." + id + ".concurrency is not set");
+        }
+        final String[] bounds = concurrency.split("-");
+        final int min = Integer.parseInt(bounds[0].trim());
+        final Limit limit = new Limit(min, bounds.length > 1 ? Integer.parseInt(bounds[1].trim()) : min, window);
+        Gauge.builder("rabbit.listener.consumers", limit, Limit::consumers)
+                .description("Consumers of each queue, as sized by the concurrency controller")
+                .tag("queue", queue)
+                .register(meterRegistry);
+        return limit;
+    }
+
+    private long waiting(String queue) {
+        final Properties properties = amqpAdmin.getQueueProperties(queue);
+        return properties == null ? 0 : ((Number) properties.get(RabbitAdmin.QUEUE_MESSAGE_COUNT)).longValue();
+    }
+
+    /**
+     * The container doesn't allow more concurrent consumers than its max, change them in the right order
+     */
+    private static void apply(SimpleMessageListenerContainer container, int consumers, int current) {
+        if (consumers > current) {
+            container.setMaxConcurrentConsumers(consumers);
+            container.setConcurrentConsumers(consumers);
+        } else {
+            container.setConcurrentConsumers(consumers);
+            container.setMaxConcurrentConsumers(consumers);
+        }
+    }
+
+    /**
+     * Consumers of one listener, a gradient limit with a multiplicative decrease on errors
+     */
+    static class Limit {
+        private static final double MIN_GRADIENT = 0.5;
+
+        private final int min;
+        private final int max;
+        private final int window;
+        private double limit;
+        // Latency of the last samples, the best of them is the baseline so an odd fast one is gone after window samples
+        private final Deque<Double> latencies = new ArrayDeque<>();
+
+        // Timer readings at the previous sample
+        private long count;
+        private long failed;
+        private double time;
+
+        Limit(int min, int max, int window) {
+            this.min = min;
+            this.max = Math.max(min, max);
+            this.window = Math.max(1, window);
+            this.limit = min;
+        }
+
+        int consumers() {
+            return (int) Math.round(limit);
+        }
+
+        /**
+         * @param count       messages handled so far
+         * @param failed      of which failed
+         * @param time        nanoseconds spent handling them
+         * @param backlog     messages are waiting in the queue
+         * @return the consumers the listener should have now
+         */
+        int update(long count, long failed, double time, boolean backlog, double tolerance, double maxErrorRate, double backoff) {
+            final long handled = count - this.count;
+            final long errors = failed - this.failed;
+            final double spent = time - this.time;
+            this.count = count;
+            this.failed = failed;
+            this.time = time;
+
+            if (handled > 0 && (double) errors / handled > maxErrorRate) {
+                limit *= backoff;
+            } else if (handled > 0) {
+                final double latency = spent / handled;
+                latencies.addLast(latency);
+                if (latencies.size() > window) {
+                    latencies.removeFirst();
+                }
+                final double baseline = Collections.min(latencies);
+                final double gradient = Math.max(MIN_GRADIENT, Math.min(1.0, tolerance * baseline / latency));
+                // Only grow when there is work waiting for the extra consumers
+                limit = limit * gradient + (backlog && gradient == 1.0 ? Math.sqrt(limit) : 0);
+            }
+            limit = Math.max(min, Math.min(max, limit));
+            return consumers();
+        }
+    }
+}
@@ -0,0 +1,18 @@
+package com.tbilou.flickrspring.message;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A photo to add to a photoset, sent to the photosets add queue
+ * <p>
+ * {"photoId":"123654", "photosetId":"77612536123234234111"}
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class AddToPhotosetMessage {
+    private String photoId;
+    private String photosetId;
+}
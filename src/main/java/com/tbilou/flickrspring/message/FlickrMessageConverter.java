@@ -0,0 +1,101 @@
+package com.tbilou.flickrspring.message;
+
+import com.google.gson.Gson;
+import com.google.gson.GsonBuilder;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParseException;
+import com.google.gson.JsonParser;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.AbstractMessageConverter;
+import org.springframework.amqp.support.converter.MessageConversionException;
+
+import java.nio.charset.StandardCharsets;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes our queue messages as plain json with a short type header and reads them
+ * straight back into their type.
+ * <p>
+ * Messages published before the typed messages were a json object encoded a second
+ * time as a json string, with no usable type. Those are unwrapped and their type is
+ * guessed from their fields so the queues can be drained after an upgrade.
+ */
+@Slf4j
+public class FlickrMessageConverter extends AbstractMessageConverter {
+
+    public static final String TYPE_HEADER = "type";
+
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
+
+    private final Map<String, Class<?>> types = new HashMap<>();
+    private final Map<Class<?>, String> names = new HashMap<>();
+
+    public FlickrMessageConverter() {
+        register("photo", PhotoMessage.class);
+        register("photoset-page", PhotosetPageMessage.class);
+        register("add-to-set", AddToPhotosetMessage.class);
+    }
+
+    private void register(String name, Class<?> type) {
+        types.put(name, type);
+        names.put(type, name);
+    }
+
+    @Override
+    protected Message createMessage(Object object, MessageProperties messageProperties) {
+        final String name = names.get(object.getClass());
+        if (name == null) {
+            throw new MessageConversionException("Don't know how to send " + object.getClass().getName());
+        }
+        final byte[] body = GSON.toJson(object).getBytes(StandardCharsets.UTF_8);
+        messageProperties.setContentType(MessageProperties.CONTENT_TYPE_JSON);
+        messageProperties.setContentEncoding(StandardCharsets.UTF_8.name());
+        messageProperties.setContentLength(body.length);
+        messageProperties.setHeader(TYPE_HEADER, name);
+        return new Message(body, messageProperties);
+    }
+
+    @Override
+    public Object fromMessage(Message message) {
+        // Messages are small, decoding them in one go is cheaper than setting up a stream decoder
+        final String body = new String(message.getBody(), StandardCharsets.UTF_8);
+        final Class<?> type = types.get(message.getMessageProperties().getHeaders().get(TYPE_HEADER));
+        try {
+            if (type != null) {
+                return GSON.fromJson(body, type);
+            }
+            return fromLegacy(body);
+        } catch (JsonParseException e) {
+            throw new MessageConversionException("Unable to read message " + message.getMessageProperties().getMessageId(), e);
+        }
+    }
+
+    private Object fromLegacy(String body) {
+        JsonElement json = new JsonParser().parse(body);
+        // Strings were json encoded a second time by the old producers
+        if (json.isJsonPrimitive() && json.getAsJsonPrimitive().isString()) {
+            json = new JsonParser().parse(json.getAsString());
+        }
+        if (!json.isJsonObject()) {
+            throw new MessageConversionException("Unexpected message " + body);
+        }
+
+        final JsonObject object = json.getAsJsonObject();
+        final Class<?> type;
+        if (object.has("photoId")) {
+            type = AddToPhotosetMessage.class;
+        } else if (object.has("url")) {
+            type = PhotoMessage.class;
+        } else if (object.has("page") || object.has("setName")) {
+            type = PhotosetPageMessage.class;
+        } else {
+            throw new MessageConversionException("Unable to tell the type of message " + body);
+        }
+        log.debug("Read untyped message as {}", type.getSimpleName());
+        return GSON.fromJson(object, type);
+    }
+}
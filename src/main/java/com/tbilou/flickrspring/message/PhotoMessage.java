@@ -0,0 +1,22 @@
+package com.tbilou.flickrspring.message;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * A photo to download, sent to the download and context queues
+ * <p>
+ * {"id":"35701101", "title":"IMG_7654", "url":"https://farm5.staticflickr.com/.../35701101_o.jpg", "photosetName":"SomeSet", "datetaken":"2017-10-14 21:31:12"}
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PhotoMessage {
+    private String id;
+    private String title;
+    private String url;
+    // Not known yet on the context queue
+    private String photosetName;
+    private String datetaken;
+}
@@ -0,0 +1,19 @@
+package com.tbilou.flickrspring.message;
+
+import lombok.AllArgsConstructor;
+import lombok.Data;
+import lombok.NoArgsConstructor;
+
+/**
+ * One page of a photoset, sent to the photosets queue
+ * <p>
+ * {"id":"123654", "page":1, "setName":"SomePhotoset"}
+ */
+@Data
+@NoArgsConstructor
+@AllArgsConstructor
+public class PhotosetPageMessage {
+    private String id;
+    private int page;
+    private String setName;
+}
@@ -0,0 +1,19 @@
+package com.tbilou.flickrspring.model;
+
+import com.google.gson.annotations.SerializedName;
+import lombok.Data;
+
+/**
+ * A photo (or video) as returned by the flickr listings with the extras we ask for
+ */
+@Data
+public class Photo {
+    private String id;
+    private String title;
+    @SerializedName("url_o")
+    private String url;
+    private String datetaken;
+    private String dateupload;
+    private String lastupdate;
+    private String media;
+}
@@ -0,0 +1,20 @@
+package com.tbilou.flickrspring.model;
+
+import lombok.Data;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * One page of a paginated flickr listing
+ */
+@Data
+public class PhotoPage {
+    private int page;
+    private int pages;
+    private int perpage;
+    private int total;
+    // Only set for the pages of a photoset
+    private String title;
+    private List<Photo> photos = new ArrayList<>();
+}
@@ -0,0 +1,21 @@
+package com.tbilou.flickrspring.model;
+
+import lombok.Data;
+
+import java.util.Comparator;
+
+@Data
+public class Photoset {
+    /**
+     * Flickr ids are numbers too long for a long, shorter is smaller
+     */
+    public static final Comparator<String> ID_ORDER = Comparator.comparingInt(String::length).thenComparing(Comparator.naturalOrder());
+
+    private String id;
+    private String title;
+    // id of the cover photo
+    private String primary;
+    private int photos;
+    private int videos;
+    private String dateUpdate;
+}
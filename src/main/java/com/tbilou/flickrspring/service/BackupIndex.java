@@ -0,0 +1,132 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.message.PhotoMessage;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Persistent list of the photos already saved to disk, with their size.
+ * <p>
+ * Producers check it before publishing so a re-run only sends the photos we don't have yet.
+ * Entries are kept per folder because the same photo is saved once for each set it belongs to.
+ * A photo only counts as backed up while its file is on disk with the recorded size.
+ * The file is append only, delete it to force every photo to be checked again.
+ */
+@Slf4j
+@Component
+public class BackupIndex {
+
+    @Value("${backup.index.enabled}")
+    private boolean enabled;
+
+    @Value("${backup.index.path}")
+    private String path;
+
+    @Value("${download.path}")
+    private String downloadPath;
+
+    private final Map<String, Long> sizes = new ConcurrentHashMap<>();
+    private BufferedWriter writer;
+
+    @PostConstruct
+    public void init() throws IOException {
+        if (!enabled) {
+            return;
+        }
+        final Path file = Paths.get(path);
+        if (Files.exists(file)) {
+            try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                String line;
+                while ((line = reader.readLine()) != null) {
+                    final int tab = line.lastIndexOf('\t');
+                    if (tab > 0) {
+                        sizes.put(line.substring(0, tab), Long.parseLong(line.substring(tab + 1)));
+                    }
+                }
+            }
+            log.info("Loaded {} backed up photos from {}", sizes.size(), file.toAbsolutePath());
+        }
+    }
+
+    @PreDestroy
+    public synchronized void close() throws IOException {
+        if (writer != null) {
+            writer.close();
+        }
+    }
+
+    /**
+     * The photo was saved and its file is still there with the same size. A photo deleted or
+     * cut off since is forgotten so it gets downloaded again
+     */
+    public boolean contains(PhotoMessage photo) {
+        if (!enabled) {
+            return false;
+        }
+        final String key = key(photo.getPhotosetName(), photo.getId());
+        final Long size = sizes.get(key);
+        if (size == null) {
+            return false;
+        }
+        final File file = DownloadService.targetFile(downloadPath, photo.getUrl(), photo.getTitle(), photo.getPhotosetName(), photo.getId());
+        if (file.isFile() && file.length() == size) {
+            return true;
+        }
+        log.info("{} is missing or changed since it was backed up, backing it up again", file);
+        sizes.remove(key, size);
+        return false;
+    }
+
+    /**
+     * Size of the photo when it was saved, or null if we don't know it
+     */
+    public Long size(String folder, String id) {
+        return enabled ? sizes.get(key(folder, id)) : null;
+    }
+
+    public void record(String folder, String id, long size) {
+        if (!enabled) {
+            return;
+        }
+        final String key = key(folder, id);
+        final Long previous = sizes.put(key, size);
+        if (previous != null && previous == size) {
+            return;
+        }
+        synchronized (this) {
+            try {
+                if (writer == null) {
+                    final Path file = Paths.get(path).toAbsolutePath();
+                    Files.createDirectories(file.getParent());
+                    writer = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+                }
+                writer.write(key);
+                writer.write('\t');
+                writer.write(Long.toString(size));
+                writer.newLine();
+                writer.flush();
+            } catch (IOException e) {
+                log.error("Unable to update backup index - {}", e.getMessage());
+            }
+        }
+    }
+
+    private static String key(String folder, String id) {
+        return DownloadService.folderName(folder) + "/" + id;
+    }
+}
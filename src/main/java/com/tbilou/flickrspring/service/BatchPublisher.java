@@ -0,0 +1,152 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.message.FlickrMessageConverter;
+import com.tbilou.flickrspring.service.job.JobHeaderPostProcessor;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.core.RabbitTemplate;
+import org.springframework.amqp.rabbit.support.CorrelationData;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Publishes messages to rabbit in batches on a single channel and
+ * waits for the broker to confirm each batch before sending the next one.
+ * <p>
+ * The messages of a batch the broker nacked or didn't confirm in time are published again,
+ * up to queue.publisher.max-attempts times. If some are still not confirmed publish throws,
+ * so a lost message fails the caller instead of going unnoticed.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class BatchPublisher {
+
+    private final ConnectionFactory connectionFactory;
+    private final FlickrMessageConverter flickrMessageConverter;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${queue.publisher.batch-size}")
+    private int batchSize;
+
+    @Value("${queue.publisher.confirm-timeout}")
+    private long confirmTimeout;
+
+    @Value("${queue.publisher.max-attempts}")
+    private int maxAttempts;
+
+    // A template can only have one confirm callback so we don't share the default one
+    private RabbitTemplate rabbitTemplate;
+
+    @PostConstruct
+    public void init() {
+        rabbitTemplate = new RabbitTemplate(connectionFactory);
+        rabbitTemplate.setMessageConverter(flickrMessageConverter);
+        rabbitTemplate.setBeforePublishPostProcessors(new JobHeaderPostProcessor());
+        rabbitTemplate.setConfirmCallback((correlation, ack, cause) -> {
+            final BatchCorrelation message = (BatchCorrelation) correlation;
+            final Batch batch = message.batch;
+            if (ack) {
+                batch.acked.add(message.index);
+            } else {
+                log.warn("Message nacked by the broker - {}", cause);
+                batch.nacked.incrementAndGet();
+            }
+        });
+    }
+
+    /**
+     * @throws AmqpException if some messages are still not confirmed after max-attempts
+     */
+    public PublishResult publish(String queue, Iterable<?> messages) {
+        final PublishResult result = new PublishResult();
+        List<Object> chunk = new ArrayList<>(batchSize);
+        for (Object message : messages) {
+            chunk.add(message);
+            if (chunk.size() == batchSize) {
+                publishBatch(queue, chunk, result);
+                chunk.clear();
+            }
+        }
+        if (!chunk.isEmpty()) {
+            publishBatch(queue, chunk, result);
+        }
+
+        count(queue, result);
+        log.info("Published {} messages to {}: {} confirmed, {} nacked, {} published again",
+                result.getPublished(), queue, result.getConfirmed(), result.getNacked(), result.getRepublished());
+        return result;
+    }
+
+    private void publishBatch(String queue, List<Object> chunk, PublishResult result) {
+        result.published += chunk.size();
+        List<Object> pending = chunk;
+        for (int attempt = 1; ; attempt++) {
+            final Batch batch = new Batch();
+            final List<Object> sent = pending;
+            rabbitTemplate.invoke(operations -> {
+                for (int i = 0; i < sent.size(); i++) {
+                    operations.convertAndSend(queue, sent.get(i), new BatchCorrelation(batch, i));
+                }
+                return operations.waitForConfirms(confirmTimeout);
+            });
+
+            pending = new ArrayList<>();
+            for (int i = 0; i < sent.size(); i++) {
+                if (!batch.acked.contains(i)) {
+                    pending.add(sent.get(i));
+                }
+            }
+            result.confirmed += sent.size() - pending.size();
+            result.nacked += batch.nacked.get();
+            if (pending.isEmpty()) {
+                return;
+            }
+            if (attempt >= maxAttempts) {
+                count(queue, result);
+                meterRegistry.counter("rabbit.published", "queue", queue, "result", "unconfirmed").increment(pending.size());
+                throw new AmqpException(pending.size() + " messages to " + queue + " were not confirmed by the broker after " + attempt + " attempts");
+            }
+            log.warn("{} of {} messages to {} were not confirmed, publishing them again", pending.size(), sent.size(), queue);
+            result.republished += pending.size();
+        }
+    }
+
+    private void count(String queue, PublishResult result) {
+        meterRegistry.counter("rabbit.published", "queue", queue, "result", "confirmed").increment(result.getConfirmed());
+        meterRegistry.counter("rabbit.published", "queue", queue, "result", "nacked").increment(result.getNacked());
+        meterRegistry.counter("rabbit.published", "queue", queue, "result", "republished").increment(result.getRepublished());
+    }
+
+    @Getter
+    public static class PublishResult {
+        private int published;
+        private int confirmed;
+        // Nacks received, the nacked messages were published again
+        private int nacked;
+        private int republished;
+    }
+
+    private static class Batch {
+        // Index in the batch of the messages the broker confirmed
+        private final Set<Integer> acked = ConcurrentHashMap.newKeySet();
+        private final AtomicInteger nacked = new AtomicInteger();
+    }
+
+    @RequiredArgsConstructor
+    private static class BatchCorrelation extends CorrelationData {
+        private final Batch batch;
+        private final int index;
+    }
+}
@@ -1,58 +1,216 @@
 package com.tbilou.flickrspring.service;
 
 
+import io.micrometer.core.instrument.DistributionSummary;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.tomcat.util.http.fileupload.IOUtils;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
+import javax.annotation.PostConstruct;
 import java.io.File;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.InterruptedIOException;
 import java.net.URL;
-import java.nio.file.StandardCopyOption;
+import java.nio.file.FileSystemException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
 import java.text.MessageFormat;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class DownloadService {
 
+    private final SegmentedDownloader segmentedDownloader;
+    private final BackupIndex backupIndex;
+    private final MeterRegistry meterRegistry;
+
     @Value("${download.path}")
     private String path;
 
-    public void downloadAndSave(String imageUrl, String filename, String foldername, String id) {
-        InputStream is = null;
+    @Value("${download.storage.mode}")
+    private String storageMode;
+
+    @Value("${download.storage.blobs}")
+    private String blobs;
+
+    /**
+     * copy: each folder gets its own download of the photo.
+     * hardlink / symlink: each photo is downloaded once into the blob store and the
+     * folders link to it, so a photo in five sets costs one download.
+     */
+    private enum StorageMode {
+        COPY, HARDLINK, SYMLINK
+    }
+
+    private StorageMode mode;
+    private DistributionSummary downloadedBytes;
+
+    // Blobs being downloaded, two sets asking for the same photo at the same time share one download
+    private final ConcurrentMap<String, CompletableFuture<Path>> inFlight = new ConcurrentHashMap<>();
+
+    @PostConstruct
+    public void init() {
+        mode = StorageMode.valueOf(storageMode.trim().toUpperCase());
+        log.info("Storing photos in {} mode", mode.name().toLowerCase());
+
+        downloadedBytes = DistributionSummary.builder("download.bytes")
+                .description("Size of the photos downloaded from flickr")
+                .baseUnit("bytes")
+                .publishPercentileHistogram()
+                .register(meterRegistry);
+    }
+
+    /**
+     * @return false if the photo was already on disk
+     */
+    public boolean downloadAndSave(String imageUrl, String filename, String foldername, String id) {
         File targetFile = null;
+        final long start = System.nanoTime();
+        String outcome = "failed";
         try {
 
             final URL url = new URL(imageUrl);
-            is = url.openStream();
-            targetFile = new File(MessageFormat.format("{4}/{0}/{1}-{2}.{3}", foldername.replaceAll("[\\/:\"*?<>|]", "_"), filename, id, StringUtils.getFilenameExtension(imageUrl), path));
+            targetFile = targetFile(path, imageUrl, filename, foldername, id);
             targetFile.getParentFile().mkdirs();
 
             log.debug("Saving to disk: {}", targetFile.getAbsolutePath());
-            // If the file already exists don't download again
+            // If the file already exists don't download again, unless it was cut off
             if (targetFile.exists()) {
-                log.debug("File already exists on disk. NOT Downloading it again");
-                return;
+                if (isComplete(url, targetFile, foldername, id)) {
+                    log.debug("File already exists on disk. NOT Downloading it again");
+                    backupIndex.record(foldername, id, targetFile.length());
+                    outcome = "existing";
+                    return false;
+                }
+                log.warn("{} is truncated, downloading it again", targetFile);
+                Files.delete(targetFile.toPath());
             }
 
-            // Stream the bytes from the web to disk
-            java.nio.file.Files.copy(
-                    is,
-                    targetFile.toPath(),
-                    StandardCopyOption.REPLACE_EXISTING);
+            if (mode == StorageMode.COPY) {
+                // Stream the bytes from the web to disk, in parallel ranges for large files
+                fetch(url, targetFile.toPath());
+            } else {
+                link(targetFile.toPath(), blob(url, id, StringUtils.getFilenameExtension(imageUrl)));
+            }
+            backupIndex.record(foldername, id, targetFile.length());
+            outcome = "saved";
+            return true;
         } catch (IOException e) {
-            e.printStackTrace();
-            targetFile.delete();
-            throw new RuntimeException(e.getMessage());
+            // What we got so far stays in the .part file, the next attempt resumes from there
+            log.error("Unable to save photo {} from {} - {}", id, imageUrl, e.getMessage());
+            // Keep the cause, the listeners don't requeue photos the server says are gone
+            throw new RuntimeException(e.getMessage(), e);
         } finally {
-            IOUtils.closeQuietly(is);
+            Timer.builder("download.duration")
+                    .description("Time to save a photo to disk")
+                    .tag("outcome", outcome)
+                    .publishPercentileHistogram()
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private void fetch(URL url, Path target) throws IOException {
+        // What came over the network, a resumed download doesn't count the bytes it already had
+        downloadedBytes.record(segmentedDownloader.download(url, target));
+    }
+
+    /**
+     * Files written by this version only get their name once complete, older ones may have been cut off.
+     * The size we recorded saves asking the server
+     */
+    private boolean isComplete(URL url, File file, String foldername, String id) throws IOException {
+        final Long size = backupIndex.size(foldername, id);
+        if (size != null && size == file.length()) {
+            return true;
+        }
+        return segmentedDownloader.isComplete(url, file.toPath());
+    }
+
+    /**
+     * The photo in the blob store, downloaded the first time any set asks for it
+     */
+    private Path blob(URL url, String id, String extension) throws IOException {
+        // Spread the photos over 100 folders
+        final String shard = id.length() > 2 ? id.substring(id.length() - 2) : id;
+        final Path blob = Paths.get(blobs, shard, id + "." + extension);
+        if (Files.exists(blob)) {
+            log.debug("Photo {} already in the blob store, NOT Downloading it again", id);
+            return blob;
         }
 
+        final CompletableFuture<Path> download = new CompletableFuture<>();
+        final CompletableFuture<Path> running = inFlight.putIfAbsent(id, download);
+        if (running != null) {
+            log.debug("Photo {} is already being downloaded, waiting for it", id);
+            return await(running);
+        }
+        try {
+            // It may have been completed since we looked
+            if (!Files.exists(blob)) {
+                Files.createDirectories(blob.getParent());
+                fetch(url, blob);
+            }
+            download.complete(blob);
+            return blob;
+        } catch (IOException | RuntimeException e) {
+            download.completeExceptionally(e);
+            throw e;
+        } finally {
+            inFlight.remove(id, download);
+        }
+    }
+
+    private static Path await(CompletableFuture<Path> download) throws IOException {
+        try {
+            return download.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new InterruptedIOException("Interrupted while waiting for another download of the photo");
+        } catch (ExecutionException e) {
+            if (e.getCause() instanceof IOException) {
+                throw (IOException) e.getCause();
+            }
+            throw new IOException(e.getCause().getMessage(), e.getCause());
+        }
+    }
+
+    private void link(Path target, Path blob) throws IOException {
+        if (mode == StorageMode.SYMLINK) {
+            Files.createSymbolicLink(target, target.getParent().toAbsolutePath().relativize(blob.toAbsolutePath()));
+            return;
+        }
+        try {
+            Files.createLink(target, blob);
+        } catch (UnsupportedOperationException | FileSystemException e) {
+            // Hard links don't work across file systems
+            log.warn("Unable to hard link {}, copying it instead - {}", target, e.getMessage());
+            Files.copy(blob, target);
+        }
+    }
+
+    /**
+     * Where a photo is saved, {path}/{folder}/{title}-{id}.{extension}
+     */
+    public static File targetFile(String path, String imageUrl, String filename, String foldername, String id) {
+        return new File(MessageFormat.format("{4}/{0}/{1}-{2}.{3}", folderName(foldername), filename, id, StringUtils.getFilenameExtension(imageUrl), path));
+    }
 
+    /**
+     * Photoset names can contain characters that aren't allowed in a folder name
+     */
+    public static String folderName(String photosetName) {
+        return photosetName.replaceAll("[\\/:\"*?<>|]", "_");
     }
 }
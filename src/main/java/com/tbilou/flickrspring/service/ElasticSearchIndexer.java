@@ -0,0 +1,255 @@
+package com.tbilou.flickrspring.service;
+
+import com.google.gson.Gson;
+import com.google.gson.JsonArray;
+import com.google.gson.JsonElement;
+import com.google.gson.JsonObject;
+import com.google.gson.JsonParser;
+import io.micrometer.core.instrument.Counter;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpPost;
+import org.apache.http.entity.ContentType;
+import org.apache.http.entity.StringEntity;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.util.EntityUtils;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.DelayQueue;
+import java.util.concurrent.Delayed;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Buffers documents and sends them to Elastic Search through the _bulk api.
+ * <p>
+ * A flush happens when bulk.size documents are waiting or every bulk.flush-interval,
+ * whichever comes first. Documents that failed because Elastic Search was down or busy are
+ * held back and sent again by a later flush, waiting bulk.retry-backoff and twice as long on
+ * each further attempt.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class ElasticSearchIndexer {
+
+    private static final Gson GSON = new Gson();
+
+    private final CloseableHttpClient httpClient;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${elasticsearch.enabled}")
+    private boolean enabled;
+
+    @Value("${elasticsearch.url}")
+    private String url;
+
+    @Value("${elasticsearch.index}")
+    private String index;
+
+    @Value("${elasticsearch.type}")
+    private String type;
+
+    @Value("${elasticsearch.bulk.size}")
+    private int bulkSize;
+
+    @Value("${elasticsearch.bulk.capacity}")
+    private int capacity;
+
+    @Value("${elasticsearch.bulk.flush-interval}")
+    private long flushInterval;
+
+    @Value("${elasticsearch.bulk.max-retries}")
+    private int maxRetries;
+
+    @Value("${elasticsearch.bulk.retry-backoff}")
+    private long retryBackoff;
+
+    @Value("${elasticsearch.bulk.max-retry-backoff}")
+    private long maxRetryBackoff;
+
+    private BlockingQueue<Document> queue;
+    // Failed documents, each only handed out once its backoff is over
+    private final DelayQueue<Document> retries = new DelayQueue<>();
+    private ScheduledExecutorService scheduler;
+    private final AtomicBoolean flushRequested = new AtomicBoolean();
+
+    @PostConstruct
+    public void init() {
+        queue = new ArrayBlockingQueue<>(capacity);
+        Gauge.builder("elasticsearch.queue.size", queue, BlockingQueue::size)
+                .description("Documents waiting to be sent to Elastic Search")
+                .register(meterRegistry);
+        Gauge.builder("elasticsearch.retry.size", retries, DelayQueue::size)
+                .description("Failed documents waiting to be sent to Elastic Search again")
+                .register(meterRegistry);
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "elasticsearch-indexer");
+            t.setDaemon(true);
+            return t;
+        });
+        scheduler.scheduleWithFixedDelay(this::flush, flushInterval, flushInterval, TimeUnit.MILLISECONDS);
+    }
+
+    @PreDestroy
+    public void shutdown() throws InterruptedException {
+        scheduler.shutdown();
+        scheduler.awaitTermination(flushInterval, TimeUnit.MILLISECONDS);
+        flush();
+        if (!retries.isEmpty()) {
+            log.warn("{} documents still waiting for a retry are not indexed", retries.size());
+        }
+    }
+
+    /**
+     * Queues a document to be indexed. Blocks if the buffer is full so producers can't outrun Elastic Search
+     */
+    public void index(String id, Object document) {
+        if (!enabled) {
+            return;
+        }
+        try {
+            queue.put(new Document(id, GSON.toJson(document), 0, 0));
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            log.error("Interrupted while queueing document {} for Elastic Search", id);
+            return;
+        }
+
+        if (queue.size() >= bulkSize && flushRequested.compareAndSet(false, true)) {
+            scheduler.execute(this::flush);
+        }
+    }
+
+    private synchronized void flush() {
+        flushRequested.set(false);
+        List<Document> batch = new ArrayList<>(bulkSize);
+        do {
+            batch.clear();
+            // Only the retries whose backoff is over
+            retries.drainTo(batch, bulkSize);
+            queue.drainTo(batch, bulkSize - batch.size());
+            if (!batch.isEmpty()) {
+                send(batch);
+            }
+        }
+        while (batch.size() == bulkSize);
+    }
+
+    private void send(List<Document> batch) {
+        StringBuilder body = new StringBuilder();
+        for (Document document : batch) {
+            body.append("{\"index\":{\"_index\":\"").append(index)
+                    .append("\",\"_type\":\"").append(type)
+                    .append("\",\"_id\":\"").append(document.id).append("\"}}\n")
+                    .append(document.source).append('\n');
+        }
+
+        HttpPost request = new HttpPost(url + "/_bulk");
+        request.setEntity(new StringEntity(body.toString(), ContentType.create("application/x-ndjson", "UTF-8")));
+
+        final long start = System.nanoTime();
+        String outcome = "error";
+        try (final CloseableHttpResponse resp = httpClient.execute(request)) {
+            final int statusCode = resp.getStatusLine().getStatusCode();
+            final String response = EntityUtils.toString(resp.getEntity(), "UTF-8");
+            if (statusCode >= 300) {
+                log.error("Elastic Search rejected bulk request with status {}", statusCode);
+                outcome = "rejected";
+                batch.forEach(this::retry);
+                return;
+            }
+            log.debug("Indexed {} documents in Elastic Search", batch.size());
+            outcome = "success";
+            final int failed = retryFailedItems(batch, new JsonParser().parse(response).getAsJsonObject());
+            documents("indexed").increment(batch.size() - failed);
+        } catch (IOException e) {
+            log.error("Failed to send to Elastic Search - {}", e.getMessage());
+            batch.forEach(this::retry);
+        } finally {
+            Timer.builder("elasticsearch.bulk")
+                    .description("Bulk requests sent to Elastic Search")
+                    .tag("outcome", outcome)
+                    .register(meterRegistry)
+                    .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+        }
+    }
+
+    private Counter documents(String result) {
+        return meterRegistry.counter("elasticsearch.documents", "result", result);
+    }
+
+    /**
+     * The bulk api answers 200 even when some items fail, so look at each item's status
+     */
+    private int retryFailedItems(List<Document> batch, JsonObject response) {
+        if (!response.has("errors") || !response.get("errors").getAsBoolean()) {
+            return 0;
+        }
+        int failed = 0;
+        JsonArray items = response.getAsJsonArray("items");
+        for (int i = 0; i < items.size(); i++) {
+            JsonObject item = items.get(i).getAsJsonObject().getAsJsonObject("index");
+            final int status = item.get("status").getAsInt();
+            if (status == 429 || status >= 500) {
+                failed++;
+                retry(batch.get(i));
+            } else if (status >= 300) {
+                failed++;
+                JsonElement error = item.get("error");
+                log.error("Elastic Search rejected document {} - {}", batch.get(i).id, error);
+                documents("rejected").increment();
+            }
+        }
+        return failed;
+    }
+
+    private void retry(Document document) {
+        if (document.attempts >= maxRetries) {
+            log.error("Giving up indexing document {} after {} attempts", document.id, document.attempts + 1);
+            documents("dropped").increment();
+            return;
+        }
+        if (retries.size() >= capacity) {
+            log.error("Indexing retry buffer is full, dropping document {}", document.id);
+            documents("dropped").increment();
+            return;
+        }
+        final long backoff = Math.min(maxRetryBackoff, retryBackoff << Math.min(document.attempts, 20));
+        retries.add(new Document(document.id, document.source, document.attempts + 1, System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(backoff)));
+        documents("retried").increment();
+    }
+
+    @RequiredArgsConstructor
+    private static class Document implements Delayed {
+        private final String id;
+        private final String source;
+        private final int attempts;
+        // System.nanoTime() before which the document isn't sent again
+        private final long notBefore;
+
+        @Override
+        public long getDelay(TimeUnit unit) {
+            return unit.convert(notBefore - System.nanoTime(), TimeUnit.NANOSECONDS);
+        }
+
+        @Override
+        public int compareTo(Delayed other) {
+            return Long.compare(notBefore, ((Document) other).notBefore);
+        }
+    }
+}
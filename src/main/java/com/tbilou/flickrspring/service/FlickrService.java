@@ -1,33 +1,37 @@
 package com.tbilou.flickrspring.service;
 
 import com.google.gson.Gson;
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.jayway.jsonpath.JsonPath;
-import com.jayway.jsonpath.ReadContext;
+import com.google.gson.GsonBuilder;
+import com.google.gson.stream.JsonWriter;
+import com.tbilou.flickrspring.message.AddToPhotosetMessage;
+import com.tbilou.flickrspring.message.PhotoMessage;
+import com.tbilou.flickrspring.message.PhotosetPageMessage;
+import com.tbilou.flickrspring.model.Photo;
+import com.tbilou.flickrspring.model.PhotoPage;
+import com.tbilou.flickrspring.model.Photoset;
 import com.tbilou.flickrspring.service.flickr.FlickrApiService;
+import com.tbilou.flickrspring.service.flickr.PageFetcher;
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobContextHolder;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
-import org.apache.http.client.methods.CloseableHttpResponse;
-import org.apache.http.client.methods.HttpPut;
-import org.apache.http.entity.StringEntity;
-import org.apache.http.impl.client.CloseableHttpClient;
 import org.springframework.amqp.rabbit.core.RabbitTemplate;
 import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Service;
 import org.springframework.util.StringUtils;
 
 import java.io.*;
-import java.nio.charset.Charset;
-import java.nio.file.Files;
-import java.nio.file.Paths;
-import java.text.MessageFormat;
+import java.nio.charset.StandardCharsets;
 import java.time.*;
-import java.time.format.DateTimeFormatter;
 import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
 import java.util.List;
-import java.util.Properties;
+import java.util.Optional;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.stream.Collectors;
 
 @Slf4j
 @Service
@@ -35,10 +39,17 @@ import java.util.Properties;
 public class FlickrService {
 
     private static final int PHOTOS_PER_PAGE = 500;
+    private static final Gson GSON = new GsonBuilder().disableHtmlEscaping().create();
 
     private final FlickrApiService flickrApiService;
+    private final PageFetcher pageFetcher;
     private final RabbitTemplate rabbitTemplate;
-    private final CloseableHttpClient httpClient;
+    private final BatchPublisher batchPublisher;
+    private final PhotoCatalog photoCatalog;
+    private final BackupIndex backupIndex;
+    private final PhotosetIndex photosetIndex;
+    private final SyncCheckpointStore syncCheckpointStore;
+    private final ElasticSearchIndexer elasticSearchIndexer;
 
     @Value("${queue.flickr.photosets.photos}")
     private String queuePhotos;
@@ -52,6 +63,12 @@ public class FlickrService {
     @Value("${queue.flickr.photosets.add}")
     private String queueuAddToPhotoset;
 
+    @Value("${photosets.bulk.enabled}")
+    private boolean bulkPhotosets;
+
+    @Value("${photosets.bulk.chunk-size}")
+    private int photosetChunkSize;
+
 
     /**
      * Gets the list of photosets from flickr
@@ -59,18 +76,14 @@ public class FlickrService {
      * request can return > 1000 sets
      */
     public void getPhotosetsList() {
-        JsonArray photosets = flickrApiService.photosetsGetList();
+        List<Photoset> photosets = flickrApiService.photosetsGetList();
 
         // For each ID request more information
-        for (JsonElement p : photosets) {
-            JsonObject item = p.getAsJsonObject();
-
-            final String title = item.get("title").getAsJsonObject().get("_content").getAsString();
-            final String photosetId = item.get("id").getAsString();
-            int pages = (int) Math.ceil((double) item.get("photos").getAsInt() / (double) PHOTOS_PER_PAGE);
+        for (Photoset photoset : photosets) {
+            int pages = (int) Math.ceil((double) photoset.getPhotos() / (double) PHOTOS_PER_PAGE);
 
             // if a photoset has more than 500 photos make sure we send one request for each page
-            sendMessagesToPhotosQueue(photosetId, pages, title);
+            sendMessagesToPhotosQueue(photoset.getId(), pages, photoset.getTitle());
         }
     }
 
@@ -78,304 +91,277 @@ public class FlickrService {
      * For each photoset, query flickr to get all the photos for the give page
      * We create a json message for each photo in the set and send it to rabbit
      */
-    public void getPhotosInPhotoset(JsonObject photoset) {
-        String info = flickrApiService.getPhotos(photoset.get("id").getAsString(), photoset.get("page").getAsString());
-        ReadContext ctx = JsonPath.parse(info);
-
-        JsonArray photos = ctx.read("$.photoset.photo");
-        JsonElement name = ctx.read("$.photoset.title");
-
-        List<JsonObject> messages = new ArrayList<>();
-
-        // Create a json object to send to the download queue
-        for (JsonElement photo : photos) {
-
-            final String title = photo.getAsJsonObject().get("title").getAsString();
-
-            JsonObject msg = new JsonObject();
-            msg.addProperty("id", photo.getAsJsonObject().get("id").getAsString());
-            msg.addProperty("title", StringUtils.isEmpty(title) ? msg.get("id").getAsString() : title);
-            msg.addProperty("url", photo.getAsJsonObject().get("url_o").getAsString());
-            msg.addProperty("photosetName", name.getAsString());
-            msg.addProperty("datetaken", photo.getAsJsonObject().get("datetaken").getAsString());
-            messages.add(msg);
+    public void getPhotosInPhotoset(PhotosetPageMessage photoset) {
+        final PhotoPage page = flickrApiService.getPhotos(photoset.getId(), String.valueOf(photoset.getPage()));
+        JobContextHolder.current().ifPresent(Job::pageFetched);
+        final String name = page.getTitle();
+        photosetIndex.record(photoset.getId(), name, page);
+
+        // Create a message to send to the download queue
+        List<PhotoMessage> messages = new ArrayList<>(page.getPhotos().size());
+        for (Photo photo : page.getPhotos()) {
+            messages.add(downloadMessage(photo, name));
         }
 
-        // Send all the messages to the download queue
-        log.info("Sending {} messages", messages.size());
-        messages.stream()
-                .forEach(m -> rabbitTemplate.convertAndSend(queueDownload, m.toString()));
+        // Send the photos we don't have yet to the download queue
+        final List<PhotoMessage> toDownload = messages.stream()
+                .filter(m -> !backupIndex.contains(m))
+                .collect(Collectors.toList());
+        log.info("Sending {} messages, {} already backed up", toDownload.size(), messages.size() - toDownload.size());
+        batchPublisher.publish(queueDownload, toDownload);
 
         log.info("Sending {} messages to elasticsearch", messages.size());
         messages.stream()
-                .forEach(m -> sendToElasticSearch(m));
+                .forEach(m -> elasticSearchIndexer.index(m.getId(), m));
     }
 
     public void getPagesForPhotoset(String id) {
-        JsonObject photoset = flickrApiService.photosetPages(id);
-        final int pages = photoset.get("pages").getAsInt();
-        String setName = photoset.get("title").getAsString();
+        PhotoPage photoset = flickrApiService.photosetPages(id);
 
-        sendMessagesToPhotosQueue(id, pages, setName);
+        sendMessagesToPhotosQueue(id, photoset.getPages(), photoset.getTitle());
     }
 
-    private void sendMessagesToPhotosQueue(String id, int pages, String setName) {
-        for (int p = 1; p <= pages; p++) {
-            JsonObject msg = new JsonObject();
-            msg.addProperty("id", id);
-            msg.addProperty("page", p);
-            msg.addProperty("setName", setName);
-            // send message
-            rabbitTemplate.convertAndSend(queuePhotos, msg.toString());
-        }
+    /**
+     * Message for the download queue, photos without a title are named after their id
+     */
+    static PhotoMessage downloadMessage(Photo photo, String photosetName) {
+        final String title = StringUtils.isEmpty(photo.getTitle()) ? photo.getId() : photo.getTitle();
+        return new PhotoMessage(photo.getId(), title, photo.getUrl(), photosetName, photo.getDatetaken());
     }
 
-    private void sendToElasticSearch(JsonObject m) {
-
-        String url = MessageFormat.format("http://localhost:9200/flickr/photo/{0}", m.get("id").getAsString());
-        HttpPut request = new HttpPut(url);
-        StringEntity params = new StringEntity(new Gson().toJson(m), "UTF-8");
-        params.setContentType("application/json");
-        request.addHeader("content-type", "application/json");
-        request.addHeader("Accept", "*/*");
-        request.addHeader("Accept-Encoding", "gzip,deflate,sdch");
-        request.addHeader("Accept-Language", "en-US,en;q=0.8");
-        request.setEntity(params);
-        try (final CloseableHttpResponse resp = httpClient.execute(request)) {
-            final int statusCode = resp.getStatusLine().getStatusCode();
-            log.debug("Status {}", statusCode);
-        } catch (IOException e) {
-            log.error("Failed to send to Elastic Search");
-        }
+    static PhotoMessage downloadMessage(PhotoCatalog.Entry entry, String folder) {
+        final String title = StringUtils.isEmpty(entry.getTitle()) ? entry.getId() : entry.getTitle();
+        return new PhotoMessage(entry.getId(), title, entry.getUrl(), folder, entry.getDatetaken());
     }
 
+    private void sendMessagesToPhotosQueue(String id, int pages, String setName) {
+        List<PhotosetPageMessage> messages = new ArrayList<>(pages);
+        for (int p = 1; p <= pages; p++) {
+            messages.add(new PhotosetPageMessage(id, p, setName));
+        }
+        batchPublisher.publish(queuePhotos, messages);
+    }
 
     public void getPhotosNotInSet() {
-        JsonObject photos;
-        List<JsonObject> messages = new ArrayList<>();
-
-        int currentPage = 1;
-        do {
-            photos = flickrApiService.photosNotInSet(String.valueOf(currentPage));
-            JsonArray list = photos.get("photo").getAsJsonArray();
-            for (JsonElement photo : list) {
-                final String title = photo.getAsJsonObject().get("title").getAsString();
-
-                JsonObject msg = new JsonObject();
-                msg.addProperty("id", photo.getAsJsonObject().get("id").getAsString());
-                msg.addProperty("title", StringUtils.isEmpty(title) ? msg.get("id").getAsString() : title);
-                msg.addProperty("url", photo.getAsJsonObject().get("url_o").getAsString());
-                msg.addProperty("photosetName", "NotInSet");
-                messages.add(msg);
+        final AtomicInteger total = new AtomicInteger();
+
+        pageFetcher.forEachPage(page -> flickrApiService.photosNotInSet(String.valueOf(page)), photos -> {
+            List<PhotoMessage> messages = new ArrayList<>();
+            for (Photo photo : photos.getPhotos()) {
+                final PhotoMessage message = downloadMessage(photo, "NotInSet");
+                if (!backupIndex.contains(message)) {
+                    messages.add(message);
+                }
             }
-            currentPage++;
-        }
-        while (currentPage <= photos.get("pages").getAsInt());
 
-        // Send all the messages to the download queue
-        log.info("Sending {} messages", messages.size());
-        messages.stream()
-                .forEach(m -> rabbitTemplate.convertAndSend(queueDownload, m.toString()));
+            // Send this page to the download queue
+            batchPublisher.publish(queueDownload, messages);
+            total.addAndGet(messages.size());
+        });
 
+        log.info("Sent {} photos not in a set", total.get());
     }
 
+    /**
+     * Sends the photos updated since the last sync to the context queue.
+     * Progress is checkpointed after each page the broker confirmed, an interrupted
+     * sync resumes from the lastupdate of the last photo published
+     */
     public void recentlyUpdated() {
-        final String lastUpdated = loadProperties().getProperty("lastUpdated");
+        // Lets the context listener find the sets of these photos without asking flickr
+        photosetIndex.refresh();
 
-        List<JsonObject> messages = new ArrayList<>();
-        JsonObject photos;
-        int currentPage = 1;
-        do {
-            photos = flickrApiService.photosRecentlyUpdated(lastUpdated, "1");
-            JsonArray list = photos.get("photo").getAsJsonArray();
-            for (JsonElement photo : list) {
+        final SyncCheckpointStore.Run run = syncCheckpointStore.begin();
+        final String since = String.valueOf(run.minDate());
+        final AtomicInteger total = new AtomicInteger();
 
-                final String title = photo.getAsJsonObject().get("title").getAsString();
-                final String media = photo.getAsJsonObject().get("media").getAsString();
-
-                if (!media.equalsIgnoreCase("photo")) {
+        pageFetcher.forEachPage(page -> flickrApiService.photosRecentlyUpdated(since, String.valueOf(page)), photos -> {
+            List<PhotoMessage> messages = new ArrayList<>();
+            for (Photo photo : photos.getPhotos()) {
+                if (!"photo".equalsIgnoreCase(photo.getMedia())) {
                     continue;
                 }
-
-                JsonObject msg = new JsonObject();
-                msg.addProperty("id", photo.getAsJsonObject().get("id").getAsString());
-                msg.addProperty("title", StringUtils.isEmpty(title) ? msg.get("id").getAsString() : title);
-                msg.addProperty("url", photo.getAsJsonObject().get("url_o").getAsString());
-                messages.add(msg);
+                // The photoset name is found by the context listener
+                messages.add(downloadMessage(photo, null));
             }
-            currentPage++;
-        }
-        while (currentPage <= photos.get("pages").getAsInt());
 
-        saveProperties();
+            // Throws if the broker didn't confirm the page, the next sync resumes from it
+            batchPublisher.publish(queueContext, messages);
+            syncCheckpointStore.published(run, photos.getPhotos());
+            total.addAndGet(messages.size());
+        });
 
-        log.debug("Found {} new photos since last update", messages.size());
-        messages.stream()
-                .forEach(m -> rabbitTemplate.convertAndSend(queueContext, m.toString()));
-    }
+        syncCheckpointStore.completed(run);
 
-    private Properties loadProperties() {
-        Properties properties = new Properties();
-        try (InputStream input = new FileInputStream("lastUpdated.properties")) {
-            // Load the lastUpdated value
-            properties.load(input);
-        } catch (java.io.IOException e) {
-            log.error("Unable to load lastUpdated timestamp");
-        }
-        return properties;
+        log.debug("Found {} new photos since last update", total.get());
     }
 
-    private Properties saveProperties() {
-        Properties properties = new Properties();
-        try (OutputStream output = new FileOutputStream("lastUpdated.properties")) {
-            properties.setProperty("lastUpdated", String.valueOf(Instant.now().getEpochSecond()));
-            properties.store(output, null);
-        } catch (java.io.IOException e) {
-            log.error("Unable to save lastUpdated timestamp");
-        }
-        return properties;
-    }
 
+    public void getPhotosetNameForPhoto(PhotoMessage photo) {
 
-    public void getPhotosetNameForPhoto(JsonObject photo) {
-
-        log.info("Getting photoset for id:{}", photo.get("id").getAsString());
-        String photosetName = flickrApiService.getAllContexts(photo.get("id").getAsString());
-        photo.addProperty("photosetName", photosetName);
+        log.info("Getting photoset for id:{}", photo.getId());
+        String photosetName = photosetIndex.photosetName(photo.getId());
+        photo.setPhotosetName(photosetName);
+        if (backupIndex.contains(photo)) {
+            log.debug("Photo {} already backed up in {}", photo.getId(), photosetName);
+            return;
+        }
         log.debug("Message:{}", photo);
-        rabbitTemplate.convertAndSend(queueDownload, photo.toString());
+        rabbitTemplate.convertAndSend(queueDownload, photo);
     }
 
     public void createPhotosetWithPhotosFromYear(Integer year) {
         long startSeconds = LocalDateTime.of(year, Month.JANUARY, 1, 0, 0, 0).toEpochSecond(ZoneOffset.UTC);
         long endSeconds = LocalDateTime.of(year, Month.DECEMBER, 31, 23, 59, 59).toEpochSecond(ZoneOffset.UTC);
 
-        JsonObject photos;
-        int currentPage = 1;
-        String photosetId = "";
-        List<JsonObject> messages = new ArrayList<>();
-        do {
-            photos = flickrApiService.searchPhotos(startSeconds, endSeconds, String.valueOf(currentPage));
-            JsonArray list = photos.get("photo").getAsJsonArray();
-            if (currentPage == 1) {
-                // Create photoset for this year
-                photosetId = flickrApiService.createPhotoset(String.valueOf(year), list.get(0).getAsJsonObject().get("id").getAsString());
-            }
+        if (bulkPhotosets) {
+            final Set<String> photoIds = new LinkedHashSet<>();
+            pageFetcher.forEachPage(page -> flickrApiService.searchPhotos(startSeconds, endSeconds, String.valueOf(page)),
+                    photos -> photos.getPhotos().forEach(photo -> photoIds.add(photo.getId())));
+            log.debug("Found {} photos for year {}", photoIds.size(), year);
+            editPhotoset(String.valueOf(year), photoIds);
+            return;
+        }
 
-            for (JsonElement photo : list) {
+        final AtomicReference<String> photosetId = new AtomicReference<>();
+        final AtomicInteger total = new AtomicInteger();
 
-                JsonObject msg = new JsonObject();
-                msg.addProperty("photoId", photo.getAsJsonObject().get("id").getAsString());
-                msg.addProperty("photosetId", photosetId);
-                messages.add(msg);
+        pageFetcher.forEachPage(page -> flickrApiService.searchPhotos(startSeconds, endSeconds, String.valueOf(page)), photos -> {
+            List<Photo> list = photos.getPhotos();
+            if (list.isEmpty()) {
+                return;
             }
-            currentPage++;
+            if (photosetId.get() == null) {
+                // The set of this year, unless an earlier run created it already
+                final String title = String.valueOf(year);
+                photosetId.set(findPhotoset(title)
+                        .map(Photoset::getId)
+                        .orElseGet(() -> flickrApiService.createPhotoset(title, list.get(0).getId())));
+            }
+
+            List<AddToPhotosetMessage> messages = new ArrayList<>();
+            for (Photo photo : list) {
+                messages.add(new AddToPhotosetMessage(photo.getId(), photosetId.get()));
+            }
+
+            batchPublisher.publish(queueuAddToPhotoset, messages);
+            total.addAndGet(messages.size());
+        });
+
+        log.debug("Found {} photos for year {}", total.get(), year);
+    }
+
+    private Optional<Photoset> findPhotoset(String title) {
+        return flickrApiService.photosetsGetList().stream()
+                .filter(photoset -> title.equals(photoset.getTitle()))
+                .findFirst();
+    }
+
+    /**
+     * Puts the photos in the set with this title, creating the set only if there isn't one with
+     * that title already.
+     * <p>
+     * A new set gets its first photosets.bulk.chunk-size photos with one flickr.photosets.editPhotos
+     * call, the rest go through the add queue. editPhotos replaces the photos of a set, so it is
+     * never used on an existing set, whose members may have come from a listing that missed some.
+     */
+    private void editPhotoset(String title, Set<String> photoIds) {
+        if (photoIds.isEmpty()) {
+            log.info("No photos for photoset {}", title);
+            return;
         }
-        while (currentPage <= photos.get("pages").getAsInt());
 
-        log.debug("Found {} photos for year {}", messages.size(), year);
-        messages.stream()
-                .forEach(m -> rabbitTemplate.convertAndSend(queueuAddToPhotoset, m.toString()));
+        final Optional<Photoset> existing = findPhotoset(title);
+        final String id;
+        final List<String> missing = new ArrayList<>(photoIds);
+        if (!existing.isPresent()) {
+            final String primary = missing.get(0);
+            id = flickrApiService.createPhotoset(title, primary);
+            // The set only holds the primary photo, nothing to lose
+            final List<String> chunk = missing.subList(0, Math.min(photosetChunkSize, missing.size()));
+            flickrApiService.editPhotos(id, primary, chunk);
+            log.info("Created photoset {} with {} photos", title, chunk.size());
+            chunk.clear();
+        } else {
+            id = existing.get().getId();
+            final Set<String> members = new HashSet<>();
+            pageFetcher.forEachPageAsync(page -> flickrApiService.getPhotosAsync(id, String.valueOf(page)),
+                    page -> page.getPhotos().forEach(photo -> members.add(photo.getId())));
+            missing.removeAll(members);
+        }
+
+        if (missing.isEmpty()) {
+            log.info("Photoset {} already has all of its {} photos", title, photoIds.size());
+            return;
+        }
+        for (int from = 0; from < missing.size(); from += photosetChunkSize) {
+            final List<AddToPhotosetMessage> messages = new ArrayList<>();
+            for (String photoId : missing.subList(from, Math.min(from + photosetChunkSize, missing.size()))) {
+                messages.add(new AddToPhotosetMessage(photoId, id));
+            }
+            batchPublisher.publish(queueuAddToPhotoset, messages);
+        }
+        log.info("Adding {} photos to photoset {}", missing.size(), title);
     }
 
-    public void addPhotoToPhotoset(JsonObject msg) {
-        final String photoId = msg.getAsJsonObject().get("photoId").getAsString();
-        final String photosetId = msg.getAsJsonObject().get("photosetId").getAsString();
-        flickrApiService.addPhotoToPhotoset(photosetId, photoId);
+    public void addPhotoToPhotoset(AddToPhotosetMessage msg) {
+        flickrApiService.addPhotoToPhotoset(msg.getPhotosetId(), msg.getPhotoId());
     }
 
-    public String downloadByYear(Integer input) throws IOException {
-        // Load the json from the file
-        String jsonString = new String (Files.readAllBytes(Paths.get("flickr.json")), Charset.forName("UTF-8"));
-        Gson gson = new Gson();
-        JsonArray list = gson.fromJson(jsonString, JsonArray.class);
-
-        Integer counter = 0;
-
-        final DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-
-        for (JsonElement e : list) {
-            String datetaken = e.getAsJsonObject().get("datetaken").getAsString();
-            Integer year = LocalDate.parse(datetaken, formatter).getYear();
-
-            if (year.equals(input) && e.getAsJsonObject().get("media").getAsString().equalsIgnoreCase("photo"))
-            {
-                // Send a message to rabbit
-                JsonObject msg = new JsonObject();
-                msg.addProperty("id", e.getAsJsonObject().get("id").getAsString());
-                msg.addProperty("title", e.getAsJsonObject().get("title").getAsString());
-                msg.addProperty("url", e.getAsJsonObject().get("url_o").getAsString());
-                msg.addProperty("photosetName", year);
-                msg.addProperty("datetaken", e.getAsJsonObject().get("datetaken").getAsString());
-                rabbitTemplate.convertAndSend(queueDownload, msg.toString());
-                counter+=counter+1;
+    public String downloadByYear(Integer year) throws IOException {
+        // Only the photos taken in that year, from the flickr.json catalog
+        final List<PhotoCatalog.Entry> entries = photoCatalog.entriesForYear(year);
+
+        List<PhotoMessage> messages = new ArrayList<>(entries.size());
+        for (PhotoCatalog.Entry e : entries) {
+            final PhotoMessage message = downloadMessage(e, String.valueOf(year));
+            if (backupIndex.contains(message)) {
+                continue;
             }
+            // Send a message to rabbit
+            messages.add(message);
         }
 
+        batchPublisher.publish(queueDownload, messages);
+        return String.valueOf(messages.size());
+    }
 
-        return String.valueOf(counter.intValue());
+    /**
+     * Replaces the catalog used by downloadByYear with the current list of photos
+     */
+    public void saveCatalog() {
+        try {
+            photoCatalog.replace(this::writeFullListOfPhotos);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to save the catalog", e);
+        }
     }
 
-    public String createFullListOfPhotos() {
+    /**
+     * Writes every photo to the output as a json array, one page at a time,
+     * so the full list is never held in memory
+     */
+    public void writeFullListOfPhotos(OutputStream output) throws IOException {
 
         // Get all photos since 1990
         final String since = "1/1/1990";
 
-        // We need one request to know how many pages there are before using the flux.range
-//        final Mono<List<JsonElement>> list = Flux.range(1, 10)
-//                .map(i -> flickrApiService.photosRecentlyUpdated(since, String.valueOf(i)))
-//                .map(response -> response.getAsJsonObject().get("photo").getAsJsonArray())
-//                .flatMap(l -> {
-//                    List<JsonElement> elements = new ArrayList<>();
-//                    for (JsonElement e : l) {
-//                        elements.add(e);
-//                    }
-//                    return Flux.fromStream(elements.stream());
-//                })
-//                .collectList();
-//        return list.block().toString();
-
-        JsonObject photos;
-        JsonArray list = new JsonArray();
-        int currentPage = 1;
-        do {
-            photos = flickrApiService.photosRecentlyUpdated(since, String.valueOf(currentPage));
-            list.addAll(photos.get("photo").getAsJsonArray());
-            currentPage++;
-        }
-
-//        while (currentPage <= 5);
-        while (currentPage <= photos.get("pages").getAsInt());
-
-//        DateTimeFormatter formatter = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
-//
-//        Map<String, Integer> stats = new HashMap<>();
-
-
-//        for (JsonElement e : list) {
-////            String id = e.getAsJsonObject().get("id").getAsString();
-////            String url = e.getAsJsonObject().get("url_o").getAsString();
-//            String datetaken = e.getAsJsonObject().get("datetaken").getAsString();
-//            Integer year = LocalDate.parse(datetaken, formatter).getYear();
-//
-//            // Photos before 2000 are analogue without exif
-//            if (year.equals(2017))
-//            {
-//                // Send a message to rabbit
-//                JsonObject msg = new JsonObject();
-//                msg.addProperty("id", e.getAsJsonObject().get("id").getAsString());
-//                msg.addProperty("title", e.getAsJsonObject().get("id").getAsString());
-//                msg.addProperty("url", e.getAsJsonObject().get("url_o").getAsString());
-//                msg.addProperty("photosetName", year);
-//                msg.addProperty("datetaken", e.getAsJsonObject().get("datetaken").getAsString());
-//                rabbitTemplate.convertAndSend(queueDownload, msg.toString());
-//
-//            }
-//            // Count photos per year
-//            stats.merge(String.valueOf(year), 1, Integer::sum);
-//        }
-
-        return list.toString();
-
+        final JsonWriter writer = new JsonWriter(new BufferedWriter(new OutputStreamWriter(output, StandardCharsets.UTF_8)));
+        writer.beginArray();
+        pageFetcher.forEachPageAsync(
+                page -> flickrApiService.photosRecentlyUpdatedAsync(since, String.valueOf(page)),
+                photos -> {
+                    for (Photo photo : photos.getPhotos()) {
+                        GSON.toJson(photo, Photo.class, writer);
+                    }
+                    try {
+                        // Let the client see each page as soon as we have it
+                        writer.flush();
+                    } catch (IOException e) {
+                        throw new UncheckedIOException(e);
+                    }
+                });
+        writer.endArray();
+        writer.flush();
     }
 }
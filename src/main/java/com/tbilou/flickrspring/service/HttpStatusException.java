@@ -0,0 +1,40 @@
+package com.tbilou.flickrspring.service;
+
+import java.io.IOException;
+import java.net.URL;
+
+/**
+ * The server answered a download with an error status
+ */
+public class HttpStatusException extends IOException {
+
+    private final int status;
+
+    public HttpStatusException(int status, String reason, URL url) {
+        super("Unexpected status " + status + " " + reason + " for " + url);
+        this.status = status;
+    }
+
+    public int getStatus() {
+        return status;
+    }
+
+    /**
+     * A client error, e.g. 404 or 410, asking again gets the same answer. Timeouts and throttling aside
+     */
+    public boolean isPermanent() {
+        return status >= 400 && status < 500 && status != 408 && status != 429;
+    }
+
+    /**
+     * @return the failure, or one of its causes, is a permanent error status
+     */
+    public static boolean isPermanent(Throwable failure) {
+        for (Throwable t = failure; t != null; t = t.getCause()) {
+            if (t instanceof HttpStatusException) {
+                return ((HttpStatusException) t).isPermanent();
+            }
+        }
+        return false;
+    }
+}
@@ -0,0 +1,166 @@
+package com.tbilou.flickrspring.service;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import lombok.Getter;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Per year index of the photos in the flickr.json dump created by /backup/all.
+ * <p>
+ * The file is read once with a streaming reader and kept in memory until it changes on disk.
+ * Only photos are indexed, videos are skipped.
+ */
+@Slf4j
+@Component
+public class PhotoCatalog {
+
+    @Value("${catalog.path}")
+    private String path;
+
+    private volatile Index index;
+
+    public List<Entry> entriesForYear(int year) throws IOException {
+        return load().byYear.getOrDefault(year, Collections.emptyList());
+    }
+
+    @FunctionalInterface
+    public interface Content {
+        void write(OutputStream output) throws IOException;
+    }
+
+    /**
+     * Writes a new catalog next to the current one and moves it into place once it is complete,
+     * so a failed or cancelled dump leaves the previous catalog untouched
+     */
+    public void replace(Content content) throws IOException {
+        final Path file = Paths.get(path).toAbsolutePath();
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            try (OutputStream output = Files.newOutputStream(tmp)) {
+                content.write(output);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } finally {
+            Files.deleteIfExists(tmp);
+        }
+        log.info("Saved catalog {}", file);
+    }
+
+    private Index load() throws IOException {
+        final Path file = Paths.get(path);
+        final long lastModified = Files.getLastModifiedTime(file).toMillis();
+        final long size = Files.size(file);
+
+        Index current = index;
+        if (current != null && current.lastModified == lastModified && current.size == size) {
+            return current;
+        }
+
+        synchronized (this) {
+            current = index;
+            if (current == null || current.lastModified != lastModified || current.size != size) {
+                final long start = System.currentTimeMillis();
+                try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+                    current = new Index(lastModified, size, read(reader));
+                }
+                index = current;
+                log.info("Loaded catalog {} in {}ms", file.toAbsolutePath(), System.currentTimeMillis() - start);
+            }
+            return current;
+        }
+    }
+
+    static Map<Integer, List<Entry>> read(Reader input) throws IOException {
+        Map<Integer, List<Entry>> byYear = new HashMap<>();
+
+        JsonReader reader = new JsonReader(input);
+        reader.beginArray();
+        while (reader.hasNext()) {
+            String id = null;
+            String title = null;
+            String url = null;
+            String datetaken = null;
+            String media = null;
+
+            reader.beginObject();
+            while (reader.hasNext()) {
+                final String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.skipValue();
+                    continue;
+                }
+                switch (name) {
+                    case "id":
+                        id = reader.nextString();
+                        break;
+                    case "title":
+                        title = reader.nextString();
+                        break;
+                    case "url_o":
+                        url = reader.nextString();
+                        break;
+                    case "datetaken":
+                        datetaken = reader.nextString();
+                        break;
+                    case "media":
+                        media = reader.nextString();
+                        break;
+                    default:
+                        reader.skipValue();
+                }
+            }
+            reader.endObject();
+
+            // datetaken looks like 2017-10-14 21:31:12
+            if (!"photo".equalsIgnoreCase(media) || url == null || datetaken == null || datetaken.length() < 4) {
+                continue;
+            }
+            final int year;
+            try {
+                year = Integer.parseInt(datetaken.substring(0, 4));
+            } catch (NumberFormatException e) {
+                log.warn("Ignoring photo {} with invalid datetaken {}", id, datetaken);
+                continue;
+            }
+            byYear.computeIfAbsent(year, y -> new ArrayList<>()).add(new Entry(id, title, url, datetaken));
+        }
+        reader.endArray();
+
+        byYear.values().forEach(l -> ((ArrayList<Entry>) l).trimToSize());
+        return byYear;
+    }
+
+    @Getter
+    @RequiredArgsConstructor
+    public static class Entry {
+        private final String id;
+        private final String title;
+        private final String url;
+        private final String datetaken;
+    }
+
+    @RequiredArgsConstructor
+    private static class Index {
+        private final long lastModified;
+        private final long size;
+        private final Map<Integer, List<Entry>> byYear;
+    }
+}
@@ -0,0 +1,170 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.model.Photo;
+import com.tbilou.flickrspring.model.PhotoPage;
+import com.tbilou.flickrspring.model.Photoset;
+import com.tbilou.flickrspring.service.flickr.FlickrApiService;
+import com.tbilou.flickrspring.service.flickr.PageFetcher;
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Objects;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.stream.Collectors;
+
+/**
+ * Knows which photoset each photo belongs to, so finding the folder of a photo
+ * doesn't cost a flickr.photos.getAllContexts call.
+ * <p>
+ * Built from the photoset listings. A refresh only reads the pages of the sets whose
+ * date_update changed since the last one, and replaces what we knew about them so photos
+ * that left a set, and sets that were deleted, are forgotten. A photo in several sets is
+ * filed under the one with the lowest id, the same one getAllContexts answers with.
+ * Photos we don't know about are still looked up with getAllContexts and remembered
+ * until the next refresh that finds a change.
+ */
+@Slf4j
+@Service
+@RequiredArgsConstructor
+public class PhotosetIndex {
+
+    private final FlickrApiService flickrApiService;
+    private final PageFetcher pageFetcher;
+    private final MeterRegistry meterRegistry;
+
+    // photo id -> id of the set it is filed under
+    private final Map<String, String> sets = new ConcurrentHashMap<>();
+    // photoset id -> title
+    private final Map<String, String> titles = new ConcurrentHashMap<>();
+    // photo id -> set name from getAllContexts
+    private final Map<String, String> contexts = new ConcurrentHashMap<>();
+    // photoset id -> its photos, to find the ones that left it
+    private final Map<String, Set<String>> members = new HashMap<>();
+    // photoset id -> date_update when we last read its pages
+    private final Map<String, String> indexed = new HashMap<>();
+    private volatile boolean loaded;
+
+    @PostConstruct
+    public void init() {
+        Gauge.builder("photoset.index.size", sets, Map::size)
+                .description("Photos whose photoset is known without asking flickr")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Name of the photoset the photo is filed under, or NoSet
+     */
+    public String photosetName(String photoId) {
+        if (!loaded) {
+            refresh();
+        }
+        final String set = sets.get(photoId);
+        final String title = set == null ? null : titles.get(set);
+        if (title != null) {
+            return title;
+        }
+        String name = contexts.get(photoId);
+        if (name == null) {
+            log.debug("Photo {} not in the photoset index, asking flickr", photoId);
+            name = flickrApiService.getAllContexts(photoId);
+            contexts.put(photoId, name);
+        }
+        return name;
+    }
+
+    /**
+     * Reads the pages of the photosets that were created or changed since the last refresh
+     * and forgets the ones that were deleted
+     */
+    public synchronized void refresh() {
+        int changed = 0;
+        final List<Photoset> photosets = flickrApiService.photosetsGetList();
+        final Set<String> current = photosets.stream().map(Photoset::getId).collect(Collectors.toSet());
+        for (String id : new ArrayList<>(indexed.keySet())) {
+            if (!current.contains(id)) {
+                replace(id, Collections.emptySet());
+                members.remove(id);
+                indexed.remove(id);
+                titles.remove(id);
+                changed++;
+            }
+        }
+        for (Photoset photoset : photosets) {
+            // A rename is picked up even if the photos didn't change
+            titles.put(photoset.getId(), photoset.getTitle());
+            if (Objects.equals(indexed.get(photoset.getId()), photoset.getDateUpdate())) {
+                continue;
+            }
+            // Not the cached getPhotos, the set has changed since
+            final Set<String> photos = new HashSet<>();
+            pageFetcher.forEachPageAsync(
+                    page -> flickrApiService.getPhotosAsync(photoset.getId(), String.valueOf(page)),
+                    page -> page.getPhotos().forEach(photo -> photos.add(photo.getId())));
+            replace(photoset.getId(), photos);
+            indexed.put(photoset.getId(), photoset.getDateUpdate());
+            changed++;
+        }
+        if (changed > 0) {
+            contexts.clear();
+        }
+        loaded = true;
+        log.info("Photoset index refreshed, {} sets changed, {} photos known", changed, sets.size());
+    }
+
+    /**
+     * Remembers the set of every photo in a page we got for some other reason
+     */
+    public synchronized void record(String photosetId, String photosetName, PhotoPage page) {
+        titles.put(photosetId, photosetName);
+        final Set<String> photos = members.computeIfAbsent(photosetId, id -> new HashSet<>());
+        for (Photo photo : page.getPhotos()) {
+            photos.add(photo.getId());
+            file(photo.getId(), photosetId);
+        }
+    }
+
+    /**
+     * The photos of a set are now exactly these
+     */
+    private void replace(String photosetId, Set<String> photos) {
+        final Set<String> previous = members.put(photosetId, photos);
+        for (String photo : photos) {
+            file(photo, photosetId);
+        }
+        if (previous == null) {
+            return;
+        }
+        for (String photo : previous) {
+            if (!photos.contains(photo) && photosetId.equals(sets.get(photo))) {
+                refile(photo);
+            }
+        }
+    }
+
+    private void file(String photoId, String photosetId) {
+        sets.merge(photoId, photosetId, (a, b) -> Photoset.ID_ORDER.compare(a, b) <= 0 ? a : b);
+    }
+
+    /**
+     * The photo left the set it was filed under, file it under the next one or forget it
+     */
+    private void refile(String photoId) {
+        sets.remove(photoId);
+        for (Map.Entry<String, Set<String>> set : members.entrySet()) {
+            if (set.getValue().contains(photoId)) {
+                file(photoId, set.getKey());
+            }
+        }
+    }
+}
@@ -0,0 +1,481 @@
+package com.tbilou.flickrspring.service;
+
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.apache.http.Header;
+import org.apache.http.HttpHeaders;
+import org.apache.http.HttpResponse;
+import org.apache.http.HttpStatus;
+import org.apache.http.client.methods.CloseableHttpResponse;
+import org.apache.http.client.methods.HttpGet;
+import org.apache.http.client.methods.HttpHead;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.net.URL;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Base64;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Downloads a file to disk, splitting large files into byte ranges that are
+ * fetched in parallel and written at their offset into a preallocated file.
+ * <p>
+ * Small files, or servers that don't support ranges, use a single GET.
+ * The file only appears under its name once it is complete. Until then it is a .part
+ * file next to a .part.segments file. Its first line is the ETag or Last-Modified of the
+ * file, a part file is only resumed with If-Range on it so the bytes of a photo replaced on
+ * flickr are never appended to the old ones. For segmented downloads the next lines are
+ * the size and number of segments, then the finished segments.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class SegmentedDownloader {
+
+    private static final int BUFFER_SIZE = 64 * 1024;
+    private static final String CONTENT_MD5 = "Content-MD5";
+
+    private final CloseableHttpClient downloadHttpClient;
+
+    @Value("${download.segmented.threshold}")
+    private long threshold;
+
+    @Value("${download.segmented.connections-per-file}")
+    private int connectionsPerFile;
+
+    @Value("${download.segmented.min-segment-size}")
+    private long minSegmentSize;
+
+    @Value("${download.segmented.threads}")
+    private int threads;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        // Shared by every file so a single huge photo can't take all the connections
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(threads, r -> {
+            Thread t = new Thread(r, "download-segment-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * Downloads into target.part and moves it into place once its size and checksum
+     * are verified. A part file left by a failed attempt is resumed instead of restarted.
+     * <p>
+     * There is no HEAD first, the GET tells us how big the file is. Only files at or above
+     * the threshold are then split, the body of that GET becomes their first segment.
+     *
+     * @return the bytes fetched from the server, not counting what a previous attempt left
+     */
+    public long download(URL url, Path target) throws IOException {
+        final Path part = target.resolveSibling(target.getFileName() + ".part");
+        final AtomicLong fetched = new AtomicLong();
+
+        RemoteFile remote;
+        try {
+            remote = resume(url, part, fetched);
+        } catch (FileChangedException e) {
+            log.warn("{} changed on the server, starting over", url);
+            discard(part);
+            remote = get(url, part, null, fetched);
+        }
+        verify(url, part, remote);
+
+        Files.move(part, target, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        Files.deleteIfExists(segmentsFile(part));
+        return fetched.get();
+    }
+
+    /**
+     * Checks a file on disk has the size the server announces for it. A file whose size the
+     * server doesn't tell is not complete, it gets downloaded again
+     *
+     * @throws HttpStatusException if the server answers with an error, the file is left alone
+     */
+    public boolean isComplete(URL url, Path file) throws IOException {
+        final RemoteFile remote = head(url);
+        return remote.length >= 0 && Files.size(file) == remote.length;
+    }
+
+    /**
+     * What the server tells us about the file
+     */
+    private static class RemoteFile {
+        // -1 if unknown
+        private long length = -1;
+        private boolean ranges;
+        // base64 Content-MD5, if the server sends one
+        private String md5;
+        // ETag or Last-Modified, to send with If-Range. Null if there is none
+        private String validator;
+    }
+
+    /**
+     * A range was asked for with If-Range and the server sent the whole file, it changed since the part file was started
+     */
+    private static class FileChangedException extends IOException {
+        FileChangedException(URL url) {
+            super(url + " changed since the part file was started");
+        }
+    }
+
+    private RemoteFile head(URL url) throws IOException {
+        try (CloseableHttpResponse response = downloadHttpClient.execute(new HttpHead(url.toString()))) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (status >= HttpStatus.SC_BAD_REQUEST) {
+                throw new HttpStatusException(status, response.getStatusLine().getReasonPhrase(), url);
+            }
+            if (status != HttpStatus.SC_OK) {
+                return new RemoteFile();
+            }
+            return remoteFile(response, contentLength(response));
+        }
+    }
+
+    private static RemoteFile remoteFile(HttpResponse response, long length) {
+        final RemoteFile remote = new RemoteFile();
+        remote.length = length;
+        remote.ranges = response.getFirstHeader(HttpHeaders.ACCEPT_RANGES) != null
+                && "bytes".equalsIgnoreCase(response.getFirstHeader(HttpHeaders.ACCEPT_RANGES).getValue());
+        if (response.getFirstHeader(CONTENT_MD5) != null) {
+            remote.md5 = response.getFirstHeader(CONTENT_MD5).getValue().trim();
+        }
+        remote.validator = validator(response);
+        return remote;
+    }
+
+    /**
+     * If-Range needs a strong ETag, otherwise the Last-Modified date
+     */
+    private static String validator(HttpResponse response) {
+        final Header etag = response.getFirstHeader(HttpHeaders.ETAG);
+        if (etag != null && !etag.getValue().startsWith("W/")) {
+            return etag.getValue();
+        }
+        final Header lastModified = response.getFirstHeader(HttpHeaders.LAST_MODIFIED);
+        return lastModified == null ? null : lastModified.getValue();
+    }
+
+    private static long contentLength(HttpResponse response) {
+        final Header header = response.getFirstHeader(HttpHeaders.CONTENT_LENGTH);
+        return header == null ? -1 : Long.parseLong(header.getValue());
+    }
+
+    /**
+     * Size of the whole file from the Content-Range header, -1 if unknown
+     */
+    private static long totalLength(HttpResponse response) {
+        final Header header = response.getFirstHeader(HttpHeaders.CONTENT_RANGE);
+        if (header == null || header.getValue().endsWith("/*")) {
+            return -1;
+        }
+        return Long.parseLong(header.getValue().substring(header.getValue().lastIndexOf('/') + 1).trim());
+    }
+
+    /**
+     * Carries on from what a previous attempt left in the part file
+     */
+    private RemoteFile resume(URL url, Path part, AtomicLong fetched) throws IOException {
+        final Path sidecar = segmentsFile(part);
+        if (!Files.exists(part) || !Files.exists(sidecar)) {
+            return get(url, part, null, fetched);
+        }
+        final List<String> lines = Files.readAllLines(sidecar, StandardCharsets.UTF_8);
+        final String validator = lines.isEmpty() || lines.get(0).isEmpty() ? null : lines.get(0);
+        if (lines.size() > 1) {
+            final RemoteFile remote = resumeSegmented(url, part, validator, lines.get(1), fetched);
+            if (remote != null) {
+                return remote;
+            }
+        }
+        return get(url, part, validator, fetched);
+    }
+
+    /**
+     * One GET, resuming the part file if we know which version of the file it holds.
+     * Large files are handed over to the segmented download
+     */
+    private RemoteFile get(URL url, Path part, String validator, AtomicLong fetched) throws IOException {
+        final long offset = validator != null && Files.exists(part) ? Files.size(part) : 0;
+        final HttpGet request = new HttpGet(url.toString());
+        if (offset > 0) {
+            request.setHeader(HttpHeaders.RANGE, "bytes=" + offset + "-");
+            // The server sends the whole file instead if it changed
+            request.setHeader(HttpHeaders.IF_RANGE, validator);
+        }
+        try (CloseableHttpResponse response = downloadHttpClient.execute(request)) {
+            final int status = response.getStatusLine().getStatusCode();
+            if (offset > 0 && status == HttpStatus.SC_PARTIAL_CONTENT) {
+                log.debug("Resuming {} from byte {}", url, offset);
+                final RemoteFile remote = remoteFile(response, totalLength(response));
+                remote.md5 = null;
+                remote.validator = validator;
+                write(response, part, true, fetched);
+                return remote;
+            }
+            if (offset > 0 && status == HttpStatus.SC_REQUESTED_RANGE_NOT_SATISFIABLE && totalLength(response) == offset) {
+                log.debug("{} already fully downloaded", part);
+                final RemoteFile remote = new RemoteFile();
+                remote.length = offset;
+                return remote;
+            }
+            if (status != HttpStatus.SC_OK) {
+                // A part file the server can't resume is of no use
+                discard(part);
+                throw new HttpStatusException(status, response.getStatusLine().getReasonPhrase(), url);
+            }
+
+            final RemoteFile remote = remoteFile(response, contentLength(response));
+            if (remote.ranges && remote.length >= threshold) {
+                downloadSegmented(url, part, remote.length, remote.validator, response.getEntity().getContent(), fetched);
+            } else {
+                // What the part file will hold, so a later attempt can resume it
+                Files.write(segmentsFile(part), sidecarHeader(remote.validator).getBytes(StandardCharsets.UTF_8));
+                write(response, part, false, fetched);
+            }
+            return remote;
+        }
+    }
+
+    private static void write(HttpResponse response, Path part, boolean append, AtomicLong fetched) throws IOException {
+        try (InputStream is = response.getEntity().getContent();
+             OutputStream os = Files.newOutputStream(part, StandardOpenOption.CREATE, StandardOpenOption.WRITE,
+                     append ? StandardOpenOption.APPEND : StandardOpenOption.TRUNCATE_EXISTING)) {
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            int read;
+            while ((read = is.read(buffer)) != -1) {
+                os.write(buffer, 0, read);
+                fetched.addAndGet(read);
+            }
+        }
+    }
+
+    private static String sidecarHeader(String validator) {
+        return (validator == null ? "" : validator) + "\n";
+    }
+
+    /**
+     * Carries on with a segmented download a previous attempt started, or returns null if its
+     * part file can't be used
+     */
+    private RemoteFile resumeSegmented(URL url, Path part, String validator, String layout, AtomicLong fetched) throws IOException {
+        final String[] header = layout.split(" ");
+        if (validator == null || header.length != 2 || Files.size(part) != Long.parseLong(header[0])) {
+            discard(part);
+            return null;
+        }
+        final RemoteFile remote = new RemoteFile();
+        remote.length = Long.parseLong(header[0]);
+        remote.ranges = true;
+        remote.validator = validator;
+        downloadSegmented(url, part, remote.length, validator, null, fetched);
+        return remote;
+    }
+
+    /**
+     * @param validator sent with If-Range on every range, null if the server gave none
+     * @param first     body of the GET that found the file, it provides the first segment. Null when resuming
+     */
+    private void downloadSegmented(URL url, Path part, long length, String validator, InputStream first, AtomicLong fetched) throws IOException {
+        final int segments = (int) Math.min(connectionsPerFile, (length + minSegmentSize - 1) / minSegmentSize);
+        final long segmentSize = (length + segments - 1) / segments;
+        final Path sidecar = segmentsFile(part);
+
+        final Set<Integer> completed = first == null ? completedSegments(part, sidecar, length, segments) : new HashSet<>();
+        if (completed.isEmpty()) {
+            // Preallocate so each segment can write at its own offset
+            try (RandomAccessFile file = new RandomAccessFile(part.toFile(), "rw")) {
+                file.setLength(length);
+            }
+            Files.write(sidecar, (sidecarHeader(validator) + length + " " + segments + "\n").getBytes(StandardCharsets.UTF_8));
+        }
+        log.debug("Downloading {} bytes in {} segments, {} already done: {}", length, segments, completed.size(), url);
+
+        final Object sidecarLock = new Object();
+        try (FileChannel channel = FileChannel.open(part, StandardOpenOption.WRITE)) {
+            List<Future<?>> futures = new ArrayList<>();
+            for (int i = first == null ? 0 : 1; i < segments; i++) {
+                if (completed.contains(i)) {
+                    continue;
+                }
+                final int segment = i;
+                final long from = i * segmentSize;
+                final long to = Math.min(from + segmentSize, length) - 1;
+                futures.add(executor.submit(() -> {
+                    downloadRange(url, validator, channel, from, to, fetched);
+                    segmentCompleted(channel, sidecar, sidecarLock, segment);
+                    return null;
+                }));
+            }
+
+            try {
+                if (first != null) {
+                    copy(first, channel, 0, Math.min(segmentSize, length) - 1, url, fetched);
+                    segmentCompleted(channel, sidecar, sidecarLock, 0);
+                }
+                for (Future<?> future : futures) {
+                    future.get();
+                }
+            } catch (ExecutionException e) {
+                futures.forEach(f -> f.cancel(true));
+                throw e.getCause() instanceof IOException ? (IOException) e.getCause() : new IOException(e.getCause());
+            } catch (InterruptedException e) {
+                futures.forEach(f -> f.cancel(true));
+                Thread.currentThread().interrupt();
+                throw new IOException("Interrupted while downloading " + url);
+            } catch (IOException e) {
+                futures.forEach(f -> f.cancel(true));
+                throw e;
+            }
+        }
+    }
+
+    /**
+     * Lists the segments of the part file written by a previous attempt, if it was split the same way
+     */
+    private Set<Integer> completedSegments(Path part, Path sidecar, long length, int segments) throws IOException {
+        final Set<Integer> completed = new HashSet<>();
+        if (!Files.exists(part) || !Files.exists(sidecar) || Files.size(part) != length) {
+            return completed;
+        }
+        final List<String> lines = Files.readAllLines(sidecar, StandardCharsets.UTF_8);
+        if (lines.size() < 2 || !lines.get(1).equals(length + " " + segments)) {
+            return completed;
+        }
+        for (String line : lines.subList(2, lines.size())) {
+            if (!line.isEmpty()) {
+                completed.add(Integer.parseInt(line));
+            }
+        }
+        return completed;
+    }
+
+    private void segmentCompleted(FileChannel channel, Path sidecar, Object sidecarLock, int segment) throws IOException {
+        // The bytes must be on disk before we say the segment is done
+        channel.force(false);
+        synchronized (sidecarLock) {
+            Files.write(sidecar, (segment + "\n").getBytes(StandardCharsets.UTF_8), StandardOpenOption.APPEND);
+        }
+    }
+
+    /**
+     * Checks the part file against the size and checksum sent by the server.
+     * A part file that doesn't match is deleted, the next attempt starts over
+     */
+    private void verify(URL url, Path part, RemoteFile remote) throws IOException {
+        final long size = Files.size(part);
+        if (remote.length >= 0 && size != remote.length) {
+            discard(part);
+            throw new IOException("Expected " + remote.length + " bytes but got " + size + " for " + url);
+        }
+        if (remote.md5 != null) {
+            final String md5 = Base64.getEncoder().encodeToString(md5(part));
+            if (!md5.equals(remote.md5)) {
+                discard(part);
+                throw new IOException("Checksum mismatch for " + url + ", expected " + remote.md5 + " but got " + md5);
+            }
+        }
+    }
+
+    private byte[] md5(Path file) throws IOException {
+        try {
+            final MessageDigest digest = MessageDigest.getInstance("MD5");
+            try (InputStream is = Files.newInputStream(file)) {
+                final byte[] buffer = new byte[BUFFER_SIZE];
+                int read;
+                while ((read = is.read(buffer)) != -1) {
+                    digest.update(buffer, 0, read);
+                }
+            }
+            return digest.digest();
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+    }
+
+    private void discard(Path part) throws IOException {
+        Files.deleteIfExists(part);
+        Files.deleteIfExists(segmentsFile(part));
+    }
+
+    private static Path segmentsFile(Path part) {
+        return part.resolveSibling(part.getFileName() + ".segments");
+    }
+
+    private void downloadRange(URL url, String validator, FileChannel channel, long from, long to, AtomicLong fetched) throws IOException {
+        final HttpGet request = new HttpGet(url.toString());
+        request.setHeader(HttpHeaders.RANGE, "bytes=" + from + "-" + to);
+        if (validator != null) {
+            request.setHeader(HttpHeaders.IF_RANGE, validator);
+        }
+
+        try (CloseableHttpResponse response = downloadHttpClient.execute(request)) {
+            // Closing the response without reading the body drops the connection instead of draining the whole file
+            if (validator != null && response.getStatusLine().getStatusCode() == HttpStatus.SC_OK) {
+                throw new FileChangedException(url);
+            }
+            if (response.getStatusLine().getStatusCode() >= HttpStatus.SC_BAD_REQUEST) {
+                throw new HttpStatusException(response.getStatusLine().getStatusCode(), response.getStatusLine().getReasonPhrase(), url);
+            }
+            if (response.getStatusLine().getStatusCode() != HttpStatus.SC_PARTIAL_CONTENT) {
+                throw new IOException("Server ignored range request for " + url);
+            }
+            try (InputStream is = response.getEntity().getContent()) {
+                copy(is, channel, from, to, url, fetched);
+            }
+        }
+    }
+
+    /**
+     * Writes bytes from to to of the file, reading no further than that from the stream
+     */
+    private static void copy(InputStream is, FileChannel channel, long from, long to, URL url, AtomicLong fetched) throws IOException {
+        final byte[] buffer = new byte[BUFFER_SIZE];
+        long position = from;
+        int read;
+        while (position <= to && (read = is.read(buffer, 0, (int) Math.min(buffer.length, to + 1 - position))) != -1) {
+            fetched.addAndGet(read);
+            final ByteBuffer bb = ByteBuffer.wrap(buffer, 0, read);
+            while (bb.hasRemaining()) {
+                position += channel.write(bb, position);
+            }
+        }
+        if (position != to + 1) {
+            throw new IOException("Incomplete segment " + from + "-" + to + " for " + url);
+        }
+    }
+}
@@ -0,0 +1,167 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.model.Photo;
+import lombok.AllArgsConstructor;
+import lombok.Getter;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.UncheckedIOException;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Remembers how far the incremental sync of recently updated photos got.
+ * <p>
+ * The watermark is the time the last complete run started, the next run asks flickr for
+ * the photos updated since then. While a run is in progress the lastupdate of the last photo
+ * whose message was confirmed by the broker is saved too, and an interrupted run asks again
+ * from there. Not a page number, photos updated in the meantime shift the pages of the listing.
+ * The file is replaced atomically so a crash leaves either the old or the new checkpoint.
+ */
+@Slf4j
+@Component
+public class SyncCheckpointStore {
+
+    private static final String LEGACY_FILE = "lastUpdated.properties";
+
+    @Value("${sync.checkpoint.path}")
+    private String path;
+
+    @Getter
+    @AllArgsConstructor
+    public static class Run {
+        // min_date of this run
+        private final long since;
+        // becomes the watermark once the run completes
+        private final long started;
+        // every photo of the listing up to this lastupdate was published, 0 if none yet
+        private long published;
+        // false once the listing turned out not to be sorted by lastupdate
+        private boolean ordered;
+
+        /**
+         * min_date to ask flickr for. A second earlier than the last photo published, the photos
+         * updated in that same second may not all have been published
+         */
+        public long minDate() {
+            return published > 0 ? Math.max(since, published - 1) : since;
+        }
+    }
+
+    /**
+     * Resumes the interrupted run if there is one, otherwise starts a new one from the watermark
+     */
+    public synchronized Run begin() {
+        final Properties checkpoint = load();
+        if (checkpoint.getProperty("run.started") != null) {
+            final Run run = new Run(
+                    Long.parseLong(checkpoint.getProperty("run.since")),
+                    Long.parseLong(checkpoint.getProperty("run.started")),
+                    Long.parseLong(checkpoint.getProperty("run.published", "0")),
+                    true);
+            log.info("Resuming sync of photos updated since {} from {}", run.getSince(), run.minDate());
+            return run;
+        }
+
+        final Run run = new Run(Long.parseLong(checkpoint.getProperty("watermark", "0")), Instant.now().getEpochSecond(), 0, true);
+        save(checkpoint, run);
+        return run;
+    }
+
+    /**
+     * Every message of these photos, the next ones of the listing, was confirmed by the broker
+     */
+    public synchronized void published(Run run, List<Photo> photos) {
+        if (!run.ordered) {
+            return;
+        }
+        long last = run.published;
+        for (Photo photo : photos) {
+            final long lastupdate = photo.getLastupdate() == null ? 0 : Long.parseLong(photo.getLastupdate());
+            if (lastupdate < last || lastupdate == 0) {
+                // Resuming from a lastupdate would skip photos, only the start of the run is safe
+                log.warn("Recently updated photos don't come sorted by lastupdate, an interrupted sync starts over");
+                run.ordered = false;
+                run.published = 0;
+                save(load(), run);
+                return;
+            }
+            last = lastupdate;
+        }
+        run.published = last;
+        save(load(), run);
+    }
+
+    public synchronized void completed(Run run) {
+        final Properties checkpoint = new Properties();
+        checkpoint.setProperty("watermark", String.valueOf(run.getStarted()));
+        store(checkpoint);
+        log.info("Sync complete, next run starts from {}", run.getStarted());
+    }
+
+    private void save(Properties checkpoint, Run run) {
+        checkpoint.setProperty("run.since", String.valueOf(run.getSince()));
+        checkpoint.setProperty("run.started", String.valueOf(run.getStarted()));
+        checkpoint.setProperty("run.published", String.valueOf(run.getPublished()));
+        store(checkpoint);
+    }
+
+    private Properties load() {
+        final Properties checkpoint = new Properties();
+        Path file = Paths.get(path);
+        if (!Files.exists(file)) {
+            // Carry over the timestamp saved by older versions
+            file = Paths.get(LEGACY_FILE);
+            if (!Files.exists(file)) {
+                return checkpoint;
+            }
+            final Properties legacy = read(file);
+            if (legacy.getProperty("lastUpdated") != null) {
+                checkpoint.setProperty("watermark", legacy.getProperty("lastUpdated"));
+            }
+            return checkpoint;
+        }
+        return read(file);
+    }
+
+    private Properties read(Path file) {
+        final Properties properties = new Properties();
+        try (InputStream input = Files.newInputStream(file)) {
+            properties.load(input);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to read sync checkpoint " + file, e);
+        }
+        return properties;
+    }
+
+    private void store(Properties checkpoint) {
+        final Path file = Paths.get(path).toAbsolutePath();
+        final Path tmp = file.resolveSibling(file.getFileName() + ".tmp");
+        try {
+            Files.createDirectories(file.getParent());
+            try (FileChannel channel = FileChannel.open(tmp, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING, StandardOpenOption.WRITE)) {
+                final OutputStream output = Channels.newOutputStream(channel);
+                checkpoint.store(output, null);
+                output.flush();
+                // On disk before it replaces the previous checkpoint
+                channel.force(true);
+            }
+            Files.move(tmp, file, StandardCopyOption.REPLACE_EXISTING, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            throw new UncheckedIOException("Unable to save sync checkpoint " + file, e);
+        }
+    }
+}
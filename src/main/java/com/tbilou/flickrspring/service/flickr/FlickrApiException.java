@@ -0,0 +1,15 @@
+package com.tbilou.flickrspring.service.flickr;
+
+/**
+ * Thrown when flickr doesn't give us an answer, even after retrying
+ */
+public class FlickrApiException extends RuntimeException {
+
+    public FlickrApiException(String message) {
+        super(message);
+    }
+
+    public FlickrApiException(String message, Throwable cause) {
+        super(message, cause);
+    }
+}
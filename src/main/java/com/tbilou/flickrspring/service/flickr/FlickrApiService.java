@@ -1,101 +1,133 @@
 package com.tbilou.flickrspring.service.flickr;
 
-import com.google.gson.JsonArray;
-import com.google.gson.JsonElement;
-import com.google.gson.JsonObject;
-import com.jayway.jsonpath.Configuration;
 import com.jayway.jsonpath.JsonPath;
+import com.tbilou.flickrspring.model.PhotoPage;
+import com.tbilou.flickrspring.model.Photoset;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.cache.annotation.CacheEvict;
 import org.springframework.cache.annotation.Cacheable;
+import org.springframework.cache.annotation.Caching;
 import org.springframework.stereotype.Service;
 
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+
 
 @Slf4j
 @Service
 @RequiredArgsConstructor
 public class FlickrApiService {
 
+    private static final String PHOTOS = "photos";
+    private static final String PHOTOSET = "photoset";
+
     private final OAuthTemplate oAuthTemplate;
-    private Configuration conf;
 
-    @Cacheable("flickr")
-    public JsonArray photosetsGetList() {
-        return JsonPath.read(getList(), "$.photosets.photoset");
+    @Value("${flickr.api.url}")
+    private String apiUrl;
+
+    @Cacheable("photosets")
+    public List<Photoset> photosetsGetList() {
+        return oAuthTemplate.get(getListUrl(), FlickrResponseReader::readPhotosets);
     }
 
-    @Cacheable("flickr")
-    public JsonObject photosetsGetPhotos(String id, String page) {
-        return JsonPath.read(getPhotos(id, page), "$");
+    @Cacheable("photosetPages")
+    public PhotoPage photosetPages(String id) {
+        return getPhotos(id, "");
     }
 
-    @Cacheable("flickr")
-    public JsonObject photosetPages(String id) {
-        return JsonPath.read(photosetsGetPhotos(id, ""), "$.photoset");
+    @Cacheable("photosNotInSet")
+    public PhotoPage photosNotInSet(String page) {
+        return oAuthTemplate.get(notInSetUrl(page), reader -> FlickrResponseReader.readPhotoPage(reader, PHOTOS));
     }
 
-    @Cacheable("flickr")
-    public JsonObject photosNotInSet(String page) {
-        String response = notInSet(page);
-        return JsonPath.read(response, "$.photos");
+    @Cacheable("photosRecentlyUpdated")
+    public PhotoPage photosRecentlyUpdated(String unixTimestamp, String page) {
+        return oAuthTemplate.get(recentlyUpdatedUrl(unixTimestamp, page), reader -> FlickrResponseReader.readPhotoPage(reader, PHOTOS));
     }
 
-    @Cacheable("flickr")
-    public JsonObject photosRecentlyUpdated(String unixTimestamp, String page) {
-        return JsonPath.read(recentlyUpdated(unixTimestamp, page), "$.photos");
+    public CompletableFuture<PhotoPage> photosRecentlyUpdatedAsync(String unixTimestamp, String page) {
+        return oAuthTemplate.getAsync(recentlyUpdatedUrl(unixTimestamp, page), reader -> FlickrResponseReader.readPhotoPage(reader, PHOTOS));
     }
 
-    public JsonObject searchPhotos(long min_taken_date, long max_taken_date, String page){
-        return JsonPath.read(photosSearch(min_taken_date, max_taken_date, page), "$.photos");
+    public PhotoPage searchPhotos(long min_taken_date, long max_taken_date, String page) {
+        return oAuthTemplate.get(photosSearchUrl(min_taken_date, max_taken_date, page), reader -> FlickrResponseReader.readPhotoPage(reader, PHOTOS));
     }
 
+    // The new set must show up in the next listing
+    @CacheEvict(cacheNames = "photosets", allEntries = true)
     public String createPhotoset(String title, String primary_photo_id) {
-        final String json = oAuthTemplate.get(String.format("https://api.flickr.com/services/rest/?method=%s&format=json&nojsoncallback=1&title=%s&primary_photo_id=%s","flickr.photosets.create", title, primary_photo_id));
-        final JsonObject photoset = JsonPath.read(json, "$.photoset");
-        return photoset.getAsJsonObject().get("id").getAsString();
+        final String json = oAuthTemplate.get(String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1&title=%s&primary_photo_id=%s","flickr.photosets.create", title, primary_photo_id));
+        return JsonPath.read(json, "$.photoset.id");
     }
 
     public void addPhotoToPhotoset(String photosetId, String photoId) {
-        oAuthTemplate.get(String.format("https://api.flickr.com/services/rest/?method=%s&format=json&nojsoncallback=1&photoset_id=%s&photo_id=%s","flickr.photosets.addPhoto", photosetId, photoId));
+        oAuthTemplate.get(String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1&photoset_id=%s&photo_id=%s","flickr.photosets.addPhoto", photosetId, photoId));
     }
 
+    /**
+     * Replaces the photos of a set in one call. Photos not in photoIds are removed from the set.
+     */
+    @Caching(evict = {
+            @CacheEvict(cacheNames = "photosets", allEntries = true),
+            @CacheEvict(cacheNames = "photosetPages", allEntries = true)})
+    public void editPhotos(String photosetId, String primaryPhotoId, Collection<String> photoIds) {
+        final Map<String, String> parameters = new HashMap<>();
+        parameters.put("photoset_id", photosetId);
+        parameters.put("primary_photo_id", primaryPhotoId);
+        parameters.put("photo_ids", String.join(",", photoIds));
+        // Thousands of ids don't fit in a url
+        oAuthTemplate.post(String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1", "flickr.photosets.editPhotos"), parameters, FlickrResponseReader::readStat);
+    }
 
+    /* ===================================================== */
 
+    /**
+     * Not cached, the listeners want the set as it is now and the page is gone once published
+     */
+    public PhotoPage getPhotos(String id, String page) {
+        return oAuthTemplate.get(getPhotosUrl(id, page), reader -> FlickrResponseReader.readPhotoPage(reader, PHOTOSET));
+    }
 
+    public CompletableFuture<PhotoPage> getPhotosAsync(String id, String page) {
+        return oAuthTemplate.getAsync(getPhotosUrl(id, page), reader -> FlickrResponseReader.readPhotoPage(reader, PHOTOSET));
+    }
 
-    /* ===================================================== */
+    public String getAllContexts(String id) {
+        return oAuthTemplate.get(getAllContextsUrl(id), reader -> FlickrResponseReader.readSetTitle(reader, "NoSet"));
+    }
 
-    public String getPhotos(String id, String page) {
-        return oAuthTemplate.get(String.format("https://api.flickr.com/services/rest/?method=%s&format=json&nojsoncallback=1&extras=url_o,date_taken&photoset_id=%s&page=%s&media=all", "flickr.photosets.getPhotos", id, page));
+    public CompletableFuture<String> getAllContextsAsync(String id) {
+        return oAuthTemplate.getAsync(getAllContextsUrl(id), reader -> FlickrResponseReader.readSetTitle(reader, "NoSet"));
     }
 
-    public String getAllContexts(String id) {
-        String json = oAuthTemplate.get(String.format("https://api.flickr.com/services/rest/?method=%s&format=json&nojsoncallback=1&photo_id=%s", "flickr.photos.getAllContexts", id));
-        JsonArray set = JsonPath.parse(json).read("$..set");
-        if (set.size() > 0) {
-            JsonElement s = set.get(0).getAsJsonArray().get(0);
-            return s.getAsJsonObject().get("title").getAsString();
-        } else {
-            return "NoSet";
-        }
+    private String getPhotosUrl(String id, String page) {
+        return String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1&extras=url_o,date_taken&photoset_id=%s&page=%s&media=all", "flickr.photosets.getPhotos", id, page);
+    }
 
+    private String getAllContextsUrl(String id) {
+        return String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1&photo_id=%s", "flickr.photos.getAllContexts", id);
     }
 
-    
-    private String getList() {
-        return oAuthTemplate.get(String.format("https://api.flickr.com/services/rest/?method=%s&format=json&nojsoncallback=1", "flickr.photosets.getList"));
+    private String getListUrl() {
+        return String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1", "flickr.photosets.getList");
     }
 
-    private String recentlyUpdated(String unixTimestamp, String page) {
-        return oAuthTemplate.get(String.format("https://api.flickr.com/services/rest/?method=%s&format=json&nojsoncallback=1&min_date=%s&extras=%s&per_page=500&page=%s&media=all", "flickr.photos.recentlyUpdated", unixTimestamp, "url_o%2C+date_taken%2C+date_upload%2C+media", page));
+    private String recentlyUpdatedUrl(String unixTimestamp, String page) {
+        return String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1&min_date=%s&extras=%s&per_page=500&page=%s&media=all", "flickr.photos.recentlyUpdated", unixTimestamp, "url_o%2C+date_taken%2C+date_upload%2C+last_update%2C+media", page);
     }
 
-    private String notInSet(String page) {
-        return oAuthTemplate.get(String.format("https://api.flickr.com/services/rest/?method=%s&format=json&nojsoncallback=1&extras=url_o&page=%s&media=all", "flickr.photos.getNotInSet", page));
+    private String notInSetUrl(String page) {
+        return String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1&extras=url_o&page=%s&media=all", "flickr.photos.getNotInSet", page);
     }
 
-    private String photosSearch(long min_taken_date, long max_taken_date, String page) {
-        return oAuthTemplate.get(String.format("https://api.flickr.com/services/rest/?method=%s&format=json&nojsoncallback=1&user_id=me&min_taken_date=%s&max_taken_date=%s&page=%s&per_page=500","flickr.photos.search", min_taken_date, max_taken_date, page));
+    private String photosSearchUrl(long min_taken_date, long max_taken_date, String page) {
+        return String.format(apiUrl + "?method=%s&format=json&nojsoncallback=1&user_id=me&min_taken_date=%s&max_taken_date=%s&page=%s&per_page=500","flickr.photos.search", min_taken_date, max_taken_date, page);
     }
 
 
@@ -0,0 +1,118 @@
+package com.tbilou.flickrspring.service.flickr;
+
+import io.micrometer.core.instrument.Gauge;
+import io.micrometer.core.instrument.MeterRegistry;
+import lombok.RequiredArgsConstructor;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket shared by every call to the flickr api.
+ * <p>
+ * The bucket refills at flickr.api.rate.hourly requests per hour and holds at most
+ * flickr.api.rate.burst tokens. When flickr throttles us the refill rate is halved and
+ * every caller is paused, then the rate slowly recovers with each successful call.
+ */
+@Slf4j
+@Component
+@RequiredArgsConstructor
+public class FlickrRateLimiter {
+
+    private static final long NANOS_PER_HOUR = TimeUnit.HOURS.toNanos(1);
+
+    private final MeterRegistry meterRegistry;
+
+    @Value("${flickr.api.rate.hourly}")
+    private int hourly;
+
+    @Value("${flickr.api.rate.burst}")
+    private int burst;
+
+    private double maxRate;
+    private double rate;
+    private double tokens;
+    private long lastRefill;
+    private long pausedUntil;
+
+    @PostConstruct
+    public void init() {
+        maxRate = (double) hourly / NANOS_PER_HOUR;
+        rate = maxRate;
+        tokens = burst;
+        lastRefill = System.nanoTime();
+
+        Gauge.builder("flickr.api.budget.remaining", this, FlickrRateLimiter::available)
+                .description("Requests that can be sent to flickr right now")
+                .register(meterRegistry);
+        Gauge.builder("flickr.api.budget.hourly", this, FlickrRateLimiter::hourlyRate)
+                .description("Current refill rate of the flickr request budget, in requests per hour")
+                .register(meterRegistry);
+    }
+
+    /**
+     * Blocks until a request can be sent
+     */
+    public void acquire() throws InterruptedException {
+        long wait;
+        while ((wait = tryAcquire()) > 0) {
+            TimeUnit.NANOSECONDS.sleep(wait);
+        }
+    }
+
+    /**
+     * Takes a token if one is available
+     *
+     * @return 0 if we got a token, otherwise how many nanoseconds to wait before trying again
+     */
+    public synchronized long tryAcquire() {
+        final long now = System.nanoTime();
+        if (now < pausedUntil) {
+            return pausedUntil - now;
+        }
+        refill(now);
+        if (tokens >= 1) {
+            tokens -= 1;
+            return 0;
+        }
+        return Math.max(1, (long) ((1 - tokens) / rate));
+    }
+
+    /**
+     * Flickr told us to slow down. Stop everyone for a while and halve the rate
+     */
+    public synchronized void throttled(long pauseMillis) {
+        final long now = System.nanoTime();
+        refill(now);
+        pausedUntil = Math.max(pausedUntil, now + TimeUnit.MILLISECONDS.toNanos(pauseMillis));
+        rate = Math.max(maxRate / 10, rate / 2);
+        tokens = 0;
+        log.warn("Throttled by flickr, pausing for {}ms and lowering the rate to {} requests per hour", pauseMillis, Math.round(rate * NANOS_PER_HOUR));
+    }
+
+    /**
+     * Each successful call gives back a bit of the rate we lost when throttled
+     */
+    public synchronized void succeeded() {
+        if (rate < maxRate) {
+            rate = Math.min(maxRate, rate + maxRate / 100);
+        }
+    }
+
+    public synchronized double available() {
+        refill(System.nanoTime());
+        return Math.floor(tokens);
+    }
+
+    private synchronized double hourlyRate() {
+        return rate * NANOS_PER_HOUR;
+    }
+
+    private void refill(long now) {
+        tokens = Math.min(burst, tokens + (now - lastRefill) * rate);
+        lastRefill = now;
+    }
+}
@@ -0,0 +1,287 @@
+package com.tbilou.flickrspring.service.flickr;
+
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.tbilou.flickrspring.model.Photo;
+import com.tbilou.flickrspring.model.PhotoPage;
+import com.tbilou.flickrspring.model.Photoset;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Reads the flickr responses straight from the http stream into our models,
+ * without building an intermediate json tree.
+ */
+public final class FlickrResponseReader {
+
+    private FlickrResponseReader() {
+    }
+
+    /**
+     * @param envelope "photos" for the photo listings or "photoset" for the pages of a set
+     */
+    public static PhotoPage readPhotoPage(Reader input, String envelope) throws IOException {
+        final PhotoPage[] page = new PhotoPage[1];
+        readResponse(input, (name, reader) -> {
+            if (name.equals(envelope)) {
+                page[0] = readPhotoPage(reader);
+                return true;
+            }
+            return false;
+        });
+        if (page[0] == null) {
+            throw new FlickrApiException("Response has no " + envelope);
+        }
+        return page[0];
+    }
+
+    public static List<Photoset> readPhotosets(Reader input) throws IOException {
+        final List<Photoset> photosets = new ArrayList<>();
+        readResponse(input, (name, reader) -> {
+            if (!name.equals("photosets")) {
+                return false;
+            }
+            reader.beginObject();
+            while (reader.hasNext()) {
+                if (reader.nextName().equals("photoset")) {
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        photosets.add(readPhotoset(reader));
+                    }
+                    reader.endArray();
+                } else {
+                    reader.skipValue();
+                }
+            }
+            reader.endObject();
+            return true;
+        });
+        return photosets;
+    }
+
+    /**
+     * Title of the set a photo is filed under, from flickr.photos.getAllContexts.
+     * When it is in several sets that is the one with the lowest id, see {@link Photoset#ID_ORDER}
+     */
+    public static String readSetTitle(Reader input, String defaultTitle) throws IOException {
+        final String[] set = {null, defaultTitle};
+        readResponse(input, (name, reader) -> {
+            if (!name.equals("set")) {
+                return false;
+            }
+            reader.beginArray();
+            while (reader.hasNext()) {
+                String id = null;
+                String title = null;
+                reader.beginObject();
+                while (reader.hasNext()) {
+                    switch (reader.nextName()) {
+                        case "id":
+                            id = nextString(reader);
+                            break;
+                        case "title":
+                            title = nextString(reader);
+                            break;
+                        default:
+                            reader.skipValue();
+                    }
+                }
+                reader.endObject();
+                if (id != null && (set[0] == null || Photoset.ID_ORDER.compare(id, set[0]) < 0)) {
+                    set[0] = id;
+                    set[1] = title;
+                }
+            }
+            reader.endArray();
+            return true;
+        });
+        return set[1];
+    }
+
+    /**
+     * For the write methods, whose answer is only stat:ok
+     */
+    public static Void readStat(Reader input) throws IOException {
+        readResponse(input, (name, reader) -> false);
+        return null;
+    }
+
+    private interface FieldHandler {
+        /**
+         * @return true if the field's value was consumed
+         */
+        boolean handle(String name, JsonReader reader) throws IOException;
+    }
+
+    /**
+     * Walks the top level object, failing if flickr answered stat:fail
+     */
+    private static void readResponse(Reader input, FieldHandler handler) throws IOException {
+        String stat = null;
+        String code = null;
+        String message = null;
+
+        JsonReader reader = new JsonReader(input);
+        reader.beginObject();
+        while (reader.hasNext()) {
+            final String name = reader.nextName();
+            if (name.equals("stat")) {
+                stat = reader.nextString();
+            } else if (name.equals("code")) {
+                code = reader.nextString();
+            } else if (name.equals("message")) {
+                message = reader.nextString();
+            } else if (!handler.handle(name, reader)) {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+
+        if ("fail".equals(stat)) {
+            throw new FlickrApiException("Flickr answered stat:fail, code " + code + " - " + message);
+        }
+    }
+
+    private static PhotoPage readPhotoPage(JsonReader reader) throws IOException {
+        PhotoPage page = new PhotoPage();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "page":
+                    page.setPage(nextInt(reader));
+                    break;
+                case "pages":
+                    page.setPages(nextInt(reader));
+                    break;
+                case "perpage":
+                case "per_page":
+                    page.setPerpage(nextInt(reader));
+                    break;
+                case "total":
+                    page.setTotal(nextInt(reader));
+                    break;
+                case "title":
+                    page.setTitle(nextString(reader));
+                    break;
+                case "photo":
+                    reader.beginArray();
+                    while (reader.hasNext()) {
+                        page.getPhotos().add(readPhoto(reader));
+                    }
+                    reader.endArray();
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return page;
+    }
+
+    private static Photo readPhoto(JsonReader reader) throws IOException {
+        Photo photo = new Photo();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    photo.setId(nextString(reader));
+                    break;
+                case "title":
+                    photo.setTitle(nextString(reader));
+                    break;
+                case "url_o":
+                    photo.setUrl(nextString(reader));
+                    break;
+                case "datetaken":
+                    photo.setDatetaken(nextString(reader));
+                    break;
+                case "dateupload":
+                    photo.setDateupload(nextString(reader));
+                    break;
+                case "lastupdate":
+                    photo.setLastupdate(nextString(reader));
+                    break;
+                case "media":
+                    photo.setMedia(nextString(reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return photo;
+    }
+
+    private static Photoset readPhotoset(JsonReader reader) throws IOException {
+        Photoset photoset = new Photoset();
+        reader.beginObject();
+        while (reader.hasNext()) {
+            switch (reader.nextName()) {
+                case "id":
+                    photoset.setId(nextString(reader));
+                    break;
+                case "title":
+                    photoset.setTitle(readContent(reader));
+                    break;
+                case "primary":
+                    photoset.setPrimary(nextString(reader));
+                    break;
+                case "photos":
+                    photoset.setPhotos(nextInt(reader));
+                    break;
+                case "videos":
+                    photoset.setVideos(nextInt(reader));
+                    break;
+                case "date_update":
+                    photoset.setDateUpdate(nextString(reader));
+                    break;
+                default:
+                    reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return photoset;
+    }
+
+    /**
+     * Some text fields come as {"_content":"..."}
+     */
+    private static String readContent(JsonReader reader) throws IOException {
+        if (reader.peek() != JsonToken.BEGIN_OBJECT) {
+            return nextString(reader);
+        }
+        String content = null;
+        reader.beginObject();
+        while (reader.hasNext()) {
+            if (reader.nextName().equals("_content")) {
+                content = nextString(reader);
+            } else {
+                reader.skipValue();
+            }
+        }
+        reader.endObject();
+        return content;
+    }
+
+    private static String nextString(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return null;
+        }
+        return reader.nextString();
+    }
+
+    /**
+     * Flickr sends some numbers as strings, nextInt accepts both
+     */
+    private static int nextInt(JsonReader reader) throws IOException {
+        if (reader.peek() == JsonToken.NULL) {
+            reader.nextNull();
+            return 0;
+        }
+        return reader.nextInt();
+    }
+}
@@ -1,36 +1,315 @@
 package com.tbilou.flickrspring.service.flickr;
 
 import com.github.scribejava.core.model.OAuth1AccessToken;
+import com.github.scribejava.core.model.OAuthAsyncRequestCallback;
 import com.github.scribejava.core.model.OAuthRequest;
 import com.github.scribejava.core.model.Response;
 import com.github.scribejava.core.model.Verb;
+import io.micrometer.core.instrument.MeterRegistry;
+import io.micrometer.core.instrument.Timer;
 import lombok.RequiredArgsConstructor;
 import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
 import org.springframework.stereotype.Component;
 
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
 import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.util.Collections;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
 
 @Slf4j
 @Component
 @RequiredArgsConstructor
 public class OAuthTemplate {
 
+    private static final int TOO_MANY_REQUESTS = 429;
+
     private final com.github.scribejava.core.oauth.OAuthService oAuthService;
     private final OAuth1AccessToken accessToken;
+    private final FlickrRateLimiter rateLimiter;
+    private final MeterRegistry meterRegistry;
+
+    @Value("${flickr.api.retry.max-attempts}")
+    private int maxAttempts;
+
+    @Value("${flickr.api.retry.initial-backoff}")
+    private long initialBackoff;
+
+    @Value("${flickr.api.retry.max-backoff}")
+    private long maxBackoff;
+
+    // Async calls wait for the rate limiter and their retries here instead of sleeping on a thread
+    private ScheduledExecutorService scheduler;
+
+    @PostConstruct
+    public void init() {
+        scheduler = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread t = new Thread(r, "flickr-api-scheduler");
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        scheduler.shutdownNow();
+    }
 
+    /**
+     * Parses a successful response straight from the http stream
+     */
+    @FunctionalInterface
+    public interface ResponseReader<T> {
+        T read(Reader reader) throws IOException;
+    }
+
+    @FunctionalInterface
+    private interface ResponseConverter<T> {
+        T convert(Response response) throws IOException;
+    }
+
+    /**
+     * Calls the flickr api, waiting for the shared rate limiter and retrying
+     * throttled (429), failed (5xx) and broken requests with exponential backoff
+     */
     public String get(String url) {
-        final OAuthRequest request = new OAuthRequest(Verb.GET, url);
+        return execute(url, this::body);
+    }
+
+    public <T> T get(String url, ResponseReader<T> reader) {
+        return execute(url, response -> read(response, reader));
+    }
+
+    /**
+     * Same as {@link #get(String, ResponseReader)} with the parameters sent as a form,
+     * for the write methods and for parameters too long for a url
+     */
+    public <T> T post(String url, Map<String, String> parameters, ResponseReader<T> reader) {
+        return execute(url, () -> sign(Verb.POST, url, parameters), response -> read(response, reader));
+    }
+
+    private <T> T execute(String url, ResponseConverter<T> converter) {
+        return execute(url, () -> sign(url), converter);
+    }
+
+    private <T> T execute(String url, Supplier<OAuthRequest> request, ResponseConverter<T> converter) {
+        for (int attempt = 1; ; attempt++) {
+            long backoff = backoff(attempt);
+            long start = System.nanoTime();
+            try {
+                rateLimiter.acquire();
+                start = System.nanoTime();
+                final Response response = oAuthService.execute(request.get());
+                record(url, outcome(response.getCode()), start);
+                if (response.isSuccessful()) {
+                    rateLimiter.succeeded();
+                    return converter.convert(response);
+                }
+                backoff = retryDelay(response, url, attempt, backoff);
+            } catch (ExecutionException | IOException e) {
+                record(url, "io_error", start);
+                log.warn("Error getting api response (attempt {} of {}) - {}", attempt, maxAttempts, e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new FlickrApiException("Interrupted while calling " + url, e);
+            }
+
+            if (attempt >= maxAttempts) {
+                throw new FlickrApiException("Giving up on " + url + " after " + attempt + " attempts");
+            }
+            sleep(backoff);
+        }
+    }
+
+    /**
+     * Same as {@link #get(String)} but doesn't block, the body is delivered
+     * on the http client's thread when flickr answers
+     */
+    public CompletableFuture<String> getAsync(String url) {
+        return executeAsync(url, this::body);
+    }
+
+    public <T> CompletableFuture<T> getAsync(String url, ResponseReader<T> reader) {
+        return executeAsync(url, response -> read(response, reader));
+    }
+
+    private <T> CompletableFuture<T> executeAsync(String url, ResponseConverter<T> converter) {
+        final CompletableFuture<T> result = new CompletableFuture<>();
+        executeAsync(url, converter, 1, result);
+        return result;
+    }
+
+    private <T> void executeAsync(String url, ResponseConverter<T> converter, int attempt, CompletableFuture<T> result) {
+        if (result.isDone()) {
+            return;
+        }
+        final long wait = rateLimiter.tryAcquire();
+        if (wait > 0) {
+            scheduler.schedule(() -> executeAsync(url, converter, attempt, result), wait, TimeUnit.NANOSECONDS);
+            return;
+        }
 
+        final long start = System.nanoTime();
+        oAuthService.execute(sign(url), new OAuthAsyncRequestCallback<Response>() {
+            @Override
+            public void onCompleted(Response response) {
+                record(url, outcome(response.getCode()), start);
+                long backoff = backoff(attempt);
+                try {
+                    if (response.isSuccessful()) {
+                        rateLimiter.succeeded();
+                        result.complete(converter.convert(response));
+                        return;
+                    }
+                    backoff = retryDelay(response, url, attempt, backoff);
+                } catch (RuntimeException e) {
+                    result.completeExceptionally(e);
+                    return;
+                } catch (IOException e) {
+                    log.warn("Error getting api response (attempt {} of {}) - {}", attempt, maxAttempts, e.getMessage());
+                }
+                retryAsync(url, converter, attempt, backoff, result);
+            }
+
+            @Override
+            public void onThrowable(Throwable t) {
+                record(url, "io_error", start);
+                log.warn("Error getting api response (attempt {} of {}) - {}", attempt, maxAttempts, t.getMessage());
+                retryAsync(url, converter, attempt, backoff(attempt), result);
+            }
+        });
+    }
+
+    private <T> void retryAsync(String url, ResponseConverter<T> converter, int attempt, long backoff, CompletableFuture<T> result) {
+        if (attempt >= maxAttempts) {
+            result.completeExceptionally(new FlickrApiException("Giving up on " + url + " after " + attempt + " attempts"));
+            return;
+        }
+        scheduler.schedule(() -> executeAsync(url, converter, attempt + 1, result), backoff, TimeUnit.MILLISECONDS);
+    }
+
+    /**
+     * Latency of each call to flickr, by api method and outcome
+     */
+    private void record(String url, String outcome, long start) {
+        Timer.builder("flickr.api.requests")
+                .description("Calls to the flickr api")
+                .tag("method", method(url))
+                .tag("outcome", outcome)
+                .publishPercentileHistogram()
+                .register(meterRegistry)
+                .record(System.nanoTime() - start, TimeUnit.NANOSECONDS);
+    }
+
+    private static String outcome(int code) {
+        if (code == TOO_MANY_REQUESTS) {
+            return "throttled";
+        }
+        return code >= 500 ? "server_error" : code >= 400 ? "client_error" : "success";
+    }
+
+    private static String method(String url) {
+        final int start = url.indexOf("method=");
+        if (start < 0) {
+            return "unknown";
+        }
+        final int end = url.indexOf('&', start);
+        return url.substring(start + "method=".length(), end < 0 ? url.length() : end);
+    }
+
+    private OAuthRequest sign(String url) {
+        return sign(Verb.GET, url, Collections.emptyMap());
+    }
+
+    private OAuthRequest sign(Verb verb, String url, Map<String, String> parameters) {
+        final OAuthRequest request = new OAuthRequest(verb, url);
+        parameters.forEach(request::addBodyParameter);
         oAuthService.signRequest(accessToken, request);
+        return request;
+    }
+
+    private String body(Response response) throws IOException {
+        final String body = response.getBody();
+        log.debug(body);
+        return body;
+    }
+
+    private <T> T read(Response response, ResponseReader<T> reader) throws IOException {
+        if (response.getStream() == null) {
+            return reader.read(new StringReader(response.getBody()));
+        }
+        try (Reader input = new InputStreamReader(response.getStream(), StandardCharsets.UTF_8)) {
+            return reader.read(input);
+        }
+    }
+
+    /**
+     * How long to wait before retrying a failed response
+     *
+     * @throws FlickrApiException if retrying won't help
+     */
+    private long retryDelay(Response response, String url, int attempt, long backoff) {
+        // We don't need the error body, give the connection back
+        if (response.getStream() != null) {
+            try {
+                response.getStream().close();
+            } catch (IOException e) {
+                log.debug("Unable to close error response - {}", e.getMessage());
+            }
+        }
+        final int code = response.getCode();
+        if (code != TOO_MANY_REQUESTS && code < 500) {
+            throw new FlickrApiException("Flickr answered " + code + " for " + url);
+        }
+        final long delay = retryAfter(response, backoff);
+        if (code == TOO_MANY_REQUESTS) {
+            rateLimiter.throttled(delay);
+        }
+        log.warn("Flickr answered {} (attempt {} of {}), retrying in {}ms", code, attempt, maxAttempts, delay);
+        return delay;
+    }
+
+    /**
+     * Exponential backoff with random jitter so the listener threads don't retry in lockstep
+     */
+    private long backoff(int attempt) {
+        final long ceiling = Math.min(maxBackoff, initialBackoff << Math.min(attempt - 1, 20));
+        return ThreadLocalRandom.current().nextLong(initialBackoff, Math.max(initialBackoff, ceiling) + 1);
+    }
+
+    /**
+     * Flickr may tell us how many seconds to wait
+     */
+    private long retryAfter(Response response, long backoff) {
+        final String retryAfter = response.getHeader("Retry-After");
+        if (retryAfter != null) {
+            try {
+                return Math.max(backoff, Long.parseLong(retryAfter.trim()) * 1000);
+            } catch (NumberFormatException e) {
+                log.debug("Ignoring Retry-After {}", retryAfter);
+            }
+        }
+        return backoff;
+    }
 
+    private void sleep(long millis) {
         try {
-            final Response response = oAuthService.execute(request);
-            log.debug(response.getBody());
-            return response.getBody();
-        } catch (InterruptedException | ExecutionException | IOException e) {
-            log.error("Error getting api response - {}", e.getMessage());
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new FlickrApiException("Interrupted while waiting to retry", e);
         }
-        return null;
     }
 }
@@ -0,0 +1,122 @@
+package com.tbilou.flickrspring.service.flickr;
+
+import com.tbilou.flickrspring.model.PhotoPage;
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobContextHolder;
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Component;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayDeque;
+import java.util.Deque;
+import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+import java.util.function.IntFunction;
+import java.util.function.ToIntFunction;
+
+/**
+ * Fetches every page of a paginated flickr listing.
+ * <p>
+ * Page 1 tells us how many pages there are, the remaining pages are fetched with up to
+ * flickr.pages.parallelism requests in flight. Pages are always handed over in page order
+ * and at most parallelism pages are held in memory.
+ */
+@Slf4j
+@Component
+public class PageFetcher {
+
+    @Value("${flickr.pages.parallelism}")
+    private int parallelism;
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        final AtomicInteger counter = new AtomicInteger();
+        executor = Executors.newFixedThreadPool(parallelism, r -> {
+            Thread t = new Thread(r, "flickr-page-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    public void forEachPage(IntFunction<PhotoPage> fetchPage, Consumer<PhotoPage> pageConsumer) {
+        forEachPage(1, fetchPage, pageConsumer);
+    }
+
+    /**
+     * Starts at firstPage instead of page 1, to resume an interrupted listing
+     */
+    public void forEachPage(int firstPage, IntFunction<PhotoPage> fetchPage, Consumer<PhotoPage> pageConsumer) {
+        forEachPage(firstPage, fetchPage, PhotoPage::getPages, pageConsumer);
+    }
+
+    public <T> void forEachPage(IntFunction<T> fetchPage, ToIntFunction<T> pageCount, Consumer<T> pageConsumer) {
+        forEachPage(1, fetchPage, pageCount, pageConsumer);
+    }
+
+    public <T> void forEachPage(int firstPage, IntFunction<T> fetchPage, ToIntFunction<T> pageCount, Consumer<T> pageConsumer) {
+        forEachPageAsync(firstPage, page -> CompletableFuture.supplyAsync(() -> fetchPage.apply(page), executor), pageCount, pageConsumer);
+    }
+
+    /**
+     * Same as {@link #forEachPage(IntFunction, Consumer)} for fetches that don't need a thread while they wait
+     */
+    public void forEachPageAsync(IntFunction<CompletableFuture<PhotoPage>> fetchPage, Consumer<PhotoPage> pageConsumer) {
+        forEachPageAsync(fetchPage, PhotoPage::getPages, pageConsumer);
+    }
+
+    public <T> void forEachPageAsync(IntFunction<CompletableFuture<T>> fetchPage, ToIntFunction<T> pageCount, Consumer<T> pageConsumer) {
+        forEachPageAsync(1, fetchPage, pageCount, pageConsumer);
+    }
+
+    public <T> void forEachPageAsync(int firstPage, IntFunction<CompletableFuture<T>> fetchPage, ToIntFunction<T> pageCount, Consumer<T> pageConsumer) {
+        Deque<CompletableFuture<T>> inFlight = new ArrayDeque<>(parallelism);
+        // Pages are counted against the job listing them, which can stop us between pages
+        final Optional<Job> job = JobContextHolder.current();
+        int pages = firstPage;
+        try {
+            // Any page tells us how many pages there are
+            final T first = fetchPage.apply(firstPage).get();
+            pages = pageCount.applyAsInt(first);
+            if (firstPage > pages && firstPage > 1) {
+                log.debug("Listing has {} pages, nothing left after page {}", pages, firstPage - 1);
+                return;
+            }
+            job.ifPresent(Job::pageFetched);
+            pageConsumer.accept(first);
+
+            int next = firstPage + 1;
+            while (next <= pages || !inFlight.isEmpty()) {
+                job.ifPresent(Job::checkCancelled);
+                while (next <= pages && inFlight.size() < parallelism) {
+                    inFlight.add(fetchPage.apply(next++));
+                }
+                // Wait for the oldest page so the consumer sees them in order
+                final T page = inFlight.poll().get();
+                job.ifPresent(Job::pageFetched);
+                pageConsumer.accept(page);
+            }
+        } catch (ExecutionException e) {
+            throw e.getCause() instanceof RuntimeException ? (RuntimeException) e.getCause() : new RuntimeException(e.getCause());
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RuntimeException("Interrupted while fetching pages");
+        } finally {
+            inFlight.forEach(f -> f.cancel(true));
+        }
+        log.debug("Fetched {} pages", pages);
+    }
+}
@@ -0,0 +1,110 @@
+package com.tbilou.flickrspring.service.job;
+
+import com.fasterxml.jackson.annotation.JsonIgnore;
+import lombok.AccessLevel;
+import lombok.Getter;
+
+import java.time.Instant;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * One run of a backup operation and how far it got.
+ * <p>
+ * The job itself lists photos and publishes messages. It is COMPLETED once every message
+ * is published, the downloads it caused are counted as the listeners get to them, so
+ * downloadsCompleted keeps growing after that.
+ */
+@Getter
+public class Job {
+
+    // Message header carrying the id of the job that caused the message
+    public static final String HEADER = "job";
+
+    public enum State {
+        QUEUED, RUNNING, COMPLETED, FAILED, CANCELLED;
+
+        public boolean isActive() {
+            return this == QUEUED || this == RUNNING;
+        }
+    }
+
+    private final String id;
+    private final JobType type;
+    private final String description;
+    private final Instant created = Instant.now();
+    private volatile Instant started;
+    private volatile Instant finished;
+    private volatile State state = State.QUEUED;
+    private volatile String error;
+
+    @JsonIgnore
+    private volatile boolean cancelRequested;
+    @JsonIgnore
+    private volatile Future<?> future;
+
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong pages = new AtomicLong();
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong messages = new AtomicLong();
+    @Getter(AccessLevel.NONE)
+    private final AtomicLong downloads = new AtomicLong();
+
+    Job(String id, JobType type, String description) {
+        this.id = id;
+        this.type = type;
+        this.description = description;
+    }
+
+    public long getPagesFetched() {
+        return pages.get();
+    }
+
+    public long getMessagesPublished() {
+        return messages.get();
+    }
+
+    public long getDownloadsCompleted() {
+        return downloads.get();
+    }
+
+    public void pageFetched() {
+        pages.incrementAndGet();
+    }
+
+    public void messagePublished() {
+        messages.incrementAndGet();
+    }
+
+    public void downloadCompleted() {
+        downloads.incrementAndGet();
+    }
+
+    /**
+     * @throws JobCancelledException if the job was cancelled, to stop the work it is doing
+     */
+    public void checkCancelled() {
+        if (cancelRequested) {
+            throw new JobCancelledException("Job " + id + " was cancelled");
+        }
+    }
+
+    void setFuture(Future<?> future) {
+        this.future = future;
+    }
+
+    void cancel() {
+        cancelRequested = true;
+    }
+
+    void started() {
+        started = Instant.now();
+        state = State.RUNNING;
+    }
+
+    void finished(State state, String error) {
+        this.error = error;
+        this.finished = Instant.now();
+        this.state = state;
+    }
+}
@@ -0,0 +1,17 @@
+package com.tbilou.flickrspring.service.job;
+
+import lombok.Getter;
+
+/**
+ * Thrown when a job is started while another job of the same type hasn't finished
+ */
+@Getter
+public class JobAlreadyRunningException extends RuntimeException {
+
+    private final Job running;
+
+    public JobAlreadyRunningException(Job running) {
+        super("A " + running.getType() + " job is already " + running.getState().name().toLowerCase() + ": " + running.getId());
+        this.running = running;
+    }
+}
@@ -0,0 +1,11 @@
+package com.tbilou.flickrspring.service.job;
+
+/**
+ * Thrown in the job's thread to stop it once it has been cancelled
+ */
+public class JobCancelledException extends RuntimeException {
+
+    public JobCancelledException(String message) {
+        super(message);
+    }
+}
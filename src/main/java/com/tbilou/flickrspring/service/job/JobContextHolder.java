@@ -0,0 +1,27 @@
+package com.tbilou.flickrspring.service.job;
+
+import java.util.Optional;
+
+/**
+ * The job the current thread is working for, set on the job's own thread and around
+ * the handling of the messages the job published, so progress is counted against it.
+ */
+public final class JobContextHolder {
+
+    private static final ThreadLocal<Job> CURRENT = new ThreadLocal<>();
+
+    private JobContextHolder() {
+    }
+
+    public static Optional<Job> current() {
+        return Optional.ofNullable(CURRENT.get());
+    }
+
+    public static void set(Job job) {
+        CURRENT.set(job);
+    }
+
+    public static void clear() {
+        CURRENT.remove();
+    }
+}
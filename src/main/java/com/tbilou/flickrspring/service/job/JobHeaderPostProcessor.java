@@ -0,0 +1,20 @@
+package com.tbilou.flickrspring.service.job;
+
+import org.springframework.amqp.AmqpException;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessagePostProcessor;
+
+/**
+ * Tags the messages published on behalf of a job with its id, and counts them
+ */
+public class JobHeaderPostProcessor implements MessagePostProcessor {
+
+    @Override
+    public Message postProcessMessage(Message message) throws AmqpException {
+        JobContextHolder.current().ifPresent(job -> {
+            message.getMessageProperties().setHeader(Job.HEADER, job.getId());
+            job.messagePublished();
+        });
+        return message;
+    }
+}
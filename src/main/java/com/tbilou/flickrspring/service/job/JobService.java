@@ -0,0 +1,153 @@
+package com.tbilou.flickrspring.service.job;
+
+import lombok.extern.slf4j.Slf4j;
+import org.springframework.beans.factory.annotation.Value;
+import org.springframework.stereotype.Service;
+
+import javax.annotation.PostConstruct;
+import javax.annotation.PreDestroy;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Optional;
+import java.util.UUID;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Runs the long backup operations in the background so the request that starts them
+ * returns straight away with the id of the job.
+ * <p>
+ * Jobs run on jobs.threads threads. A job can't be started while another job of the same
+ * type is waiting or running, so at most one job of each type is ever queued. The last
+ * jobs.history finished jobs are kept so their outcome can be looked up.
+ */
+@Slf4j
+@Service
+public class JobService {
+
+    @Value("${jobs.threads}")
+    private int threads;
+
+    @Value("${jobs.history}")
+    private int history;
+
+    // Oldest first
+    private final Map<String, Job> jobs = new LinkedHashMap<>();
+
+    private ExecutorService executor;
+
+    @PostConstruct
+    public void init() {
+        final AtomicInteger counter = new AtomicInteger();
+        executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<>(JobType.values().length), r -> {
+            Thread t = new Thread(r, "job-" + counter.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @PreDestroy
+    public void shutdown() {
+        executor.shutdownNow();
+    }
+
+    /**
+     * @throws JobAlreadyRunningException if a job of this type is waiting or running
+     */
+    public synchronized Job start(JobType type, String description, Runnable work) {
+        for (Job job : jobs.values()) {
+            if (job.getType() == type && job.getState().isActive()) {
+                throw new JobAlreadyRunningException(job);
+            }
+        }
+
+        final Job job = new Job(UUID.randomUUID().toString(), type, description);
+        job.setFuture(executor.submit(() -> run(job, work)));
+        jobs.put(job.getId(), job);
+        log.info("Started {} job {} - {}", type, job.getId(), description);
+        trim();
+        return job;
+    }
+
+    public synchronized Optional<Job> find(String id) {
+        return Optional.ofNullable(jobs.get(id));
+    }
+
+    /**
+     * Newest first
+     */
+    public synchronized List<Job> list() {
+        final List<Job> list = new ArrayList<>(jobs.values());
+        Collections.reverse(list);
+        return list;
+    }
+
+    /**
+     * Stops the job if it is still waiting or running. The messages it already published
+     * are dropped by the listeners instead of being processed.
+     */
+    public synchronized Optional<Job> cancel(String id) {
+        final Job job = jobs.get(id);
+        if (job == null) {
+            return Optional.empty();
+        }
+        if (job.getState().isActive()) {
+            job.cancel();
+            // A job that hasn't started yet never will, interrupt a running one
+            if (job.getFuture().cancel(true) && job.getStarted() == null) {
+                job.finished(Job.State.CANCELLED, null);
+            }
+            log.info("Cancelled {} job {}", job.getType(), id);
+        }
+        return Optional.of(job);
+    }
+
+    private void run(Job job, Runnable work) {
+        if (job.isCancelRequested()) {
+            return;
+        }
+        job.started();
+        JobContextHolder.set(job);
+        try {
+            work.run();
+            job.checkCancelled();
+            job.finished(Job.State.COMPLETED, null);
+            log.info("{} job {} completed: {} pages fetched, {} messages published",
+                    job.getType(), job.getId(), job.getPagesFetched(), job.getMessagesPublished());
+        } catch (RuntimeException e) {
+            if (job.isCancelRequested()) {
+                job.finished(Job.State.CANCELLED, null);
+                log.info("{} job {} stopped", job.getType(), job.getId());
+            } else {
+                job.finished(Job.State.FAILED, e.getMessage());
+                log.error("{} job {} failed", job.getType(), job.getId(), e);
+            }
+        } finally {
+            JobContextHolder.clear();
+            // Cancelling interrupts the thread, don't leave the flag for the next job
+            Thread.interrupted();
+        }
+    }
+
+    /**
+     * Forgets the oldest finished jobs
+     */
+    private void trim() {
+        int finished = (int) jobs.values().stream().filter(job -> !job.getState().isActive()).count();
+        final Iterator<Job> iterator = jobs.values().iterator();
+        while (finished > history && iterator.hasNext()) {
+            if (!iterator.next().getState().isActive()) {
+                iterator.remove();
+                finished--;
+            }
+        }
+    }
+}
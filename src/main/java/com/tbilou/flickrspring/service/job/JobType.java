@@ -0,0 +1,15 @@
+package com.tbilou.flickrspring.service.job;
+
+/**
+ * Only one job of each type can be waiting or running at a time
+ */
+public enum JobType {
+    // /backup/full
+    FULL_BACKUP,
+    // /backup/recent
+    RECENT_UPDATES,
+    // /backup/all
+    CATALOG,
+    // PUT /flickr/photosets/{year}
+    YEAR_PHOTOSET
+}
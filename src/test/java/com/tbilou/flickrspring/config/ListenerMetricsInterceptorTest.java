@@ -0,0 +1,44 @@
+package com.tbilou.flickrspring.config;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.aopalliance.intercept.MethodInvocation;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class ListenerMetricsInterceptorTest {
+
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+    private final ListenerMetricsInterceptor interceptor = new ListenerMetricsInterceptor(meterRegistry);
+
+    @Test
+    public void messagesThatNeedNoWorkAreNotTimedAsSuccesses() throws Throwable {
+        interceptor.invoke(invocation(true));
+        interceptor.invoke(invocation(false));
+
+        assertEquals(1, count("skipped"));
+        assertEquals(1, count("success"));
+    }
+
+    private long count(String outcome) {
+        return meterRegistry.find("rabbit.listener").tags("queue", "downloads", "outcome", outcome).timer().count();
+    }
+
+    private static MethodInvocation invocation(boolean skipped) throws Throwable {
+        final MessageProperties properties = new MessageProperties();
+        properties.setConsumerQueue("downloads");
+        final MethodInvocation invocation = mock(MethodInvocation.class);
+        when(invocation.getArguments()).thenReturn(new Object[]{null, new Message(new byte[0], properties)});
+        when(invocation.proceed()).then(i -> {
+            if (skipped) {
+                ListenerMetricsInterceptor.skipped();
+            }
+            return null;
+        });
+        return invocation;
+    }
+}
@@ -0,0 +1,172 @@
+package com.tbilou.flickrspring.listener;
+
+import com.rabbitmq.client.Channel;
+import com.rabbitmq.client.Consumer;
+import com.rabbitmq.client.Envelope;
+import com.rabbitmq.client.ShutdownSignalException;
+import com.tbilou.flickrspring.message.FlickrMessageConverter;
+import com.tbilou.flickrspring.message.PhotoMessage;
+import com.tbilou.flickrspring.service.DownloadService;
+import com.tbilou.flickrspring.service.HttpStatusException;
+import com.tbilou.flickrspring.service.job.Job;
+import com.tbilou.flickrspring.service.job.JobService;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.rabbit.connection.Connection;
+import org.springframework.amqp.rabbit.connection.ConnectionFactory;
+import org.springframework.amqp.rabbit.support.DefaultMessagePropertiesConverter;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.net.URL;
+import java.nio.charset.StandardCharsets;
+import java.util.Optional;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertNotNull;
+import static org.mockito.ArgumentMatchers.any;
+import static org.mockito.ArgumentMatchers.anyBoolean;
+import static org.mockito.ArgumentMatchers.anyLong;
+import static org.mockito.ArgumentMatchers.eq;
+import static org.mockito.Mockito.doThrow;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.timeout;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+public class BatchDownloadListenerTest {
+
+    private static final long WAIT = 5000;
+
+    private final ConnectionFactory connectionFactory = mock(ConnectionFactory.class);
+    private final Connection connection = mock(Connection.class);
+    private final Channel channel = mock(Channel.class);
+    private final DownloadService downloadService = mock(DownloadService.class);
+    private final JobService jobService = mock(JobService.class);
+    private final FlickrMessageConverter converter = new FlickrMessageConverter();
+    private final BlockingQueue<Consumer> consumers = new LinkedBlockingQueue<>();
+
+    private BatchDownloadListener listener;
+
+    @Before
+    public void setUp() throws IOException {
+        when(connectionFactory.createConnection()).thenReturn(connection);
+        when(connection.createChannel(false)).thenReturn(channel);
+        when(channel.isOpen()).thenReturn(true);
+        when(channel.basicConsume(eq("downloads"), eq(false), any(Consumer.class))).then(i -> {
+            consumers.add(i.getArgument(2));
+            return "consumer";
+        });
+
+        listener = new BatchDownloadListener(connectionFactory, converter, downloadService, jobService, new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(listener, "queueDownload", "downloads");
+        ReflectionTestUtils.setField(listener, "batchSize", 3);
+        ReflectionTestUtils.setField(listener, "receiveTimeout", 1000L);
+        ReflectionTestUtils.setField(listener, "prefetch", 10);
+        ReflectionTestUtils.setField(listener, "threads", 2);
+        ReflectionTestUtils.setField(listener, "reconnectDelay", 10L);
+        listener.init();
+    }
+
+    @After
+    public void tearDown() throws InterruptedException {
+        listener.shutdown();
+    }
+
+    @Test
+    public void successfulBatchIsAckedOnce() throws Exception {
+        final Consumer consumer = consumer();
+        deliver(consumer, 1, photo("1"));
+        deliver(consumer, 2, photo("2"));
+        deliver(consumer, 3, photo("3"));
+
+        verify(channel, timeout(WAIT)).basicAck(3, true);
+        verify(channel, never()).basicAck(anyLong(), eq(false));
+        verify(channel, never()).basicNack(anyLong(), anyBoolean(), anyBoolean());
+    }
+
+    @Test
+    public void onlyTransientFailuresAreRequeued() throws Exception {
+        when(downloadService.downloadAndSave(any(), any(), any(), eq("2")))
+                .thenThrow(new RuntimeException("timeout", new SocketTimeoutException("Read timed out")));
+        when(downloadService.downloadAndSave(any(), any(), any(), eq("3")))
+                .thenThrow(new RuntimeException("gone", new HttpStatusException(410, "Gone", new URL("http://farm1/3_o.jpg"))));
+
+        final Consumer consumer = consumer();
+        deliver(consumer, 1, photo("1"));
+        deliver(consumer, 2, photo("2"));
+        deliver(consumer, 3, photo("3"));
+
+        verify(channel, timeout(WAIT)).basicAck(1, false);
+        verify(channel, timeout(WAIT)).basicNack(2, false, true);
+        verify(channel, timeout(WAIT)).basicNack(3, false, false);
+    }
+
+    @Test
+    public void cancelledAndUnreadableMessagesAreDropped() throws Exception {
+        final Job job = mock(Job.class);
+        when(job.isCancelRequested()).thenReturn(true);
+        when(jobService.find("j1")).thenReturn(Optional.of(job));
+        final Message cancelled = photo("1");
+        cancelled.getMessageProperties().setHeader(Job.HEADER, "j1");
+        final MessageProperties properties = new MessageProperties();
+        properties.setHeader(FlickrMessageConverter.TYPE_HEADER, "photo");
+
+        final Consumer consumer = consumer();
+        deliver(consumer, 1, cancelled);
+        deliver(consumer, 2, new Message("not json".getBytes(StandardCharsets.UTF_8), properties));
+        deliver(consumer, 3, photo("3"));
+
+        verify(channel, timeout(WAIT)).basicAck(1, false);
+        verify(channel, timeout(WAIT)).basicNack(2, false, false);
+        verify(channel, timeout(WAIT)).basicAck(3, true);
+        verify(downloadService, never()).downloadAndSave(any(), any(), any(), eq("1"));
+    }
+
+    @Test
+    public void consumerComesBackAfterItsChannelCloses() throws Exception {
+        doThrow(new ShutdownSignalException(false, false, null, channel))
+                .doNothing()
+                .when(channel).basicAck(anyLong(), anyBoolean());
+
+        Consumer consumer = consumer();
+        deliver(consumer, 1, photo("1"));
+        deliver(consumer, 2, photo("2"));
+        deliver(consumer, 3, photo("3"));
+
+        // The connection is given back and a new consumer starts
+        verify(connection, timeout(WAIT)).close();
+        consumer = consumer();
+        deliver(consumer, 4, photo("4"));
+        deliver(consumer, 5, photo("5"));
+        deliver(consumer, 6, photo("6"));
+
+        verify(channel, timeout(WAIT)).basicAck(6, true);
+        verify(connectionFactory, times(2)).createConnection();
+    }
+
+    private Consumer consumer() throws InterruptedException {
+        final Consumer consumer = consumers.poll(WAIT, TimeUnit.MILLISECONDS);
+        assertNotNull("No consumer was registered", consumer);
+        return consumer;
+    }
+
+    private Message photo(String id) {
+        return converter.toMessage(new PhotoMessage(id, "IMG_" + id, "http://farm1/" + id + "_o.jpg", "Set", null), new MessageProperties());
+    }
+
+    private static void deliver(Consumer consumer, long tag, Message message) throws IOException {
+        consumer.handleDelivery("consumer", new Envelope(tag, false, "", "downloads"),
+                new DefaultMessagePropertiesConverter().fromMessageProperties(message.getMessageProperties(), StandardCharsets.UTF_8.name()),
+                message.getBody());
+    }
+}
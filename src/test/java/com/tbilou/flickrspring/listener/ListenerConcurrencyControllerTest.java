@@ -0,0 +1,87 @@
+package com.tbilou.flickrspring.listener;
+
+import org.junit.Test;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ListenerConcurrencyControllerTest {
+
+    private static final double TOLERANCE = 1.5;
+    private static final double MAX_ERROR_RATE = 0.1;
+    private static final double BACKOFF = 0.7;
+    private static final int WINDOW = 12;
+
+    private long count;
+    private long failed;
+    private double time;
+
+    @Test
+    public void growsWhileLatencyHoldsAndShrinksWhenItRises() {
+        final ListenerConcurrencyController.Limit limit = new ListenerConcurrencyController.Limit(2, 32, WINDOW);
+
+        int consumers = limit.consumers();
+        for (int i = 0; i < 20; i++) {
+            consumers = sample(limit, 100, 0, 10, true);
+        }
+        assertEquals(32, consumers);
+
+        // Twice as slow per message, more consumers aren't helping
+        final int slower = sample(limit, 100, 0, 40, true);
+        assertTrue(slower < consumers);
+    }
+
+    @Test
+    public void doesNotGrowWithoutBacklog() {
+        final ListenerConcurrencyController.Limit limit = new ListenerConcurrencyController.Limit(2, 32, WINDOW);
+        for (int i = 0; i < 10; i++) {
+            assertEquals(2, sample(limit, 10, 0, 10, false));
+        }
+    }
+
+    @Test
+    public void backsOffOnErrorsDownToTheMinimum() {
+        final ListenerConcurrencyController.Limit limit = new ListenerConcurrencyController.Limit(1, 8, WINDOW);
+        for (int i = 0; i < 10; i++) {
+            sample(limit, 100, 0, 10, true);
+        }
+        assertEquals(8, limit.consumers());
+
+        assertEquals(6, sample(limit, 100, 50, 10, true));
+        for (int i = 0; i < 10; i++) {
+            sample(limit, 100, 50, 10, true);
+        }
+        assertEquals(1, limit.consumers());
+    }
+
+    @Test
+    public void recoversFromAnIntervalOfFreeMessages() {
+        final ListenerConcurrencyController.Limit limit = new ListenerConcurrencyController.Limit(2, 32, WINDOW);
+        for (int i = 0; i < 5; i++) {
+            sample(limit, 100, 0, 2000, true);
+        }
+        final int before = limit.consumers();
+
+        // One interval of messages that cost nothing
+        sample(limit, 100, 0, 1, true);
+        for (int i = 0; i < WINDOW - 1; i++) {
+            sample(limit, 100, 0, 2000, true);
+        }
+        assertEquals(2, limit.consumers());
+
+        // Once it is out of the window the listener grows again
+        sample(limit, 100, 0, 2000, true);
+        assertTrue(sample(limit, 100, 0, 2000, true) > 2);
+        assertTrue(before > 2);
+    }
+
+    /**
+     * Feeds the limit the running totals after handled messages of latency milliseconds
+     */
+    private int sample(ListenerConcurrencyController.Limit limit, long handled, long errors, long latency, boolean backlog) {
+        count += handled;
+        failed += errors;
+        time += handled * latency * 1_000_000.0;
+        return limit.update(count, failed, time, backlog, TOLERANCE, MAX_ERROR_RATE, BACKOFF);
+    }
+}
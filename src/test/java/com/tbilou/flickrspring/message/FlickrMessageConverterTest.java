@@ -0,0 +1,37 @@
+package com.tbilou.flickrspring.message;
+
+import org.junit.Test;
+import org.springframework.amqp.core.Message;
+import org.springframework.amqp.core.MessageProperties;
+import org.springframework.amqp.support.converter.Jackson2JsonMessageConverter;
+
+import static org.junit.Assert.assertEquals;
+
+public class FlickrMessageConverterTest {
+
+    private final FlickrMessageConverter converter = new FlickrMessageConverter();
+
+    @Test
+    public void readsBackWhatItWrites() {
+        PhotoMessage photo = new PhotoMessage("1", "a", "https://farm1/1_o.jpg", "Set", null);
+
+        Message message = converter.toMessage(photo, new MessageProperties());
+
+        assertEquals("photo", message.getMessageProperties().getHeaders().get(FlickrMessageConverter.TYPE_HEADER));
+        assertEquals("{\"id\":\"1\",\"title\":\"a\",\"url\":\"https://farm1/1_o.jpg\",\"photosetName\":\"Set\"}", new String(message.getBody()));
+        assertEquals(photo, converter.fromMessage(message));
+    }
+
+    @Test
+    public void readsDoubleEncodedLegacyMessages() {
+        Jackson2JsonMessageConverter legacy = new Jackson2JsonMessageConverter();
+
+        Object page = converter.fromMessage(legacy.toMessage("{\"id\":\"7\",\"page\":2,\"setName\":\"Set\"}", new MessageProperties()));
+        Object add = converter.fromMessage(legacy.toMessage("{\"photoId\":\"1\",\"photosetId\":\"7\"}", new MessageProperties()));
+        Object photo = converter.fromMessage(legacy.toMessage("{\"id\":\"1\",\"title\":\"a\",\"url\":\"u\",\"photosetName\":2017}", new MessageProperties()));
+
+        assertEquals(new PhotosetPageMessage("7", 2, "Set"), page);
+        assertEquals(new AddToPhotosetMessage("1", "7"), add);
+        assertEquals(new PhotoMessage("1", "a", "u", "2017", null), photo);
+    }
+}
@@ -0,0 +1,58 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.message.PhotoMessage;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+public class BackupIndexTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private final PhotoMessage photo = new PhotoMessage("42", "beach", "https://farm1.staticflickr.com/42_o.jpg", "Holidays", "2018-07-01 10:00:00");
+
+    private BackupIndex backupIndex;
+    private File file;
+
+    @Before
+    public void setUp() throws IOException {
+        backupIndex = new BackupIndex();
+        ReflectionTestUtils.setField(backupIndex, "enabled", true);
+        ReflectionTestUtils.setField(backupIndex, "path", new File(folder.getRoot(), ".backup-index").getPath());
+        ReflectionTestUtils.setField(backupIndex, "downloadPath", folder.getRoot().getPath());
+        backupIndex.init();
+
+        file = DownloadService.targetFile(folder.getRoot().getPath(), photo.getUrl(), photo.getTitle(), photo.getPhotosetName(), photo.getId());
+        file.getParentFile().mkdirs();
+        Files.write(file.toPath(), new byte[100]);
+        backupIndex.record(photo.getPhotosetName(), photo.getId(), file.length());
+    }
+
+    @Test
+    public void truncatedFileIsBackedUpAgain() throws IOException {
+        assertTrue(backupIndex.contains(photo));
+
+        Files.write(file.toPath(), new byte[10]);
+
+        assertFalse(backupIndex.contains(photo));
+        assertNull(backupIndex.size(photo.getPhotosetName(), photo.getId()));
+    }
+
+    @Test
+    public void deletedFileIsBackedUpAgain() throws IOException {
+        Files.delete(file.toPath());
+
+        assertFalse(backupIndex.contains(photo));
+    }
+}
@@ -0,0 +1,84 @@
+package com.tbilou.flickrspring.service;
+
+import com.sun.net.httpserver.HttpServer;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class ElasticSearchIndexerTest {
+
+    // System.nanoTime() of each _bulk request
+    private final List<Long> requests = new CopyOnWriteArrayList<>();
+    private final SimpleMeterRegistry meterRegistry = new SimpleMeterRegistry();
+
+    private HttpServer server;
+    private CloseableHttpClient client;
+    private ElasticSearchIndexer indexer;
+
+    @Before
+    public void setUp() throws IOException {
+        // Elastic Search is down
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/_bulk", exchange -> {
+            requests.add(System.nanoTime());
+            exchange.getResponseHeaders().add("Connection", "close");
+            exchange.sendResponseHeaders(503, -1);
+            exchange.close();
+        });
+        server.start();
+
+        client = HttpClients.createDefault();
+        indexer = new ElasticSearchIndexer(client, meterRegistry);
+        ReflectionTestUtils.setField(indexer, "enabled", true);
+        ReflectionTestUtils.setField(indexer, "url", "http://localhost:" + server.getAddress().getPort());
+        ReflectionTestUtils.setField(indexer, "index", "flickr");
+        ReflectionTestUtils.setField(indexer, "type", "photo");
+        ReflectionTestUtils.setField(indexer, "bulkSize", 1);
+        ReflectionTestUtils.setField(indexer, "capacity", 10);
+        ReflectionTestUtils.setField(indexer, "flushInterval", 50L);
+        ReflectionTestUtils.setField(indexer, "maxRetries", 2);
+        ReflectionTestUtils.setField(indexer, "retryBackoff", 300L);
+        ReflectionTestUtils.setField(indexer, "maxRetryBackoff", 10_000L);
+        indexer.init();
+    }
+
+    @After
+    public void tearDown() throws Exception {
+        indexer.shutdown();
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void failedDocumentsAreRetriedAfterABackoff() throws InterruptedException {
+        indexer.index("1", "photo");
+
+        final long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(10);
+        while (dropped() == 0 && System.nanoTime() < deadline) {
+            Thread.sleep(50);
+        }
+
+        // Retried after 300ms then 600ms, then given up. Many flushes ran in between
+        assertEquals(1, dropped());
+        assertEquals(3, requests.size());
+        assertTrue(requests.get(1) - requests.get(0) >= TimeUnit.MILLISECONDS.toNanos(300));
+        assertTrue(requests.get(2) - requests.get(1) >= TimeUnit.MILLISECONDS.toNanos(600));
+    }
+
+    private int dropped() {
+        return (int) meterRegistry.counter("elasticsearch.documents", "result", "dropped").count();
+    }
+}
@@ -0,0 +1,55 @@
+package com.tbilou.flickrspring.service;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.StringReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PhotoCatalogTest {
+
+    private static final String JSON = "["
+            + "{\"id\":\"1\",\"title\":\"a\",\"url_o\":\"https://farm1/1_o.jpg\",\"datetaken\":\"2017-10-14 21:31:12\",\"media\":\"photo\",\"ispublic\":0},"
+            + "{\"id\":\"2\",\"title\":\"b\",\"url_o\":\"https://farm1/2_o.jpg\",\"datetaken\":\"2017-01-01 00:00:00\",\"media\":\"photo\"},"
+            + "{\"id\":\"3\",\"title\":\"c\",\"url_o\":\"https://farm1/3_o.mp4\",\"datetaken\":\"2017-05-05 10:00:00\",\"media\":\"video\"},"
+            + "{\"id\":\"4\",\"title\":null,\"url_o\":\"https://farm1/4_o.jpg\",\"datetaken\":\"2016-12-31 23:59:59\",\"media\":\"photo\"}"
+            + "]";
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void indexesPhotosByYear() throws IOException {
+        Map<Integer, List<PhotoCatalog.Entry>> byYear = PhotoCatalog.read(new StringReader(JSON));
+
+        assertEquals(2, byYear.size());
+        assertEquals(2, byYear.get(2017).size());
+        assertEquals(1, byYear.get(2016).size());
+        assertEquals("https://farm1/4_o.jpg", byYear.get(2016).get(0).getUrl());
+    }
+
+    @Test
+    public void reloadsWhenTheFileChanges() throws IOException {
+        File file = folder.newFile("flickr.json");
+        Files.write(file.toPath(), JSON.getBytes(StandardCharsets.UTF_8));
+
+        PhotoCatalog catalog = new PhotoCatalog();
+        ReflectionTestUtils.setField(catalog, "path", file.getAbsolutePath());
+
+        assertEquals(2, catalog.entriesForYear(2017).size());
+        assertTrue(catalog.entriesForYear(1990).isEmpty());
+
+        Files.write(file.toPath(), "[]".getBytes(StandardCharsets.UTF_8));
+        assertTrue(catalog.entriesForYear(2017).isEmpty());
+    }
+}
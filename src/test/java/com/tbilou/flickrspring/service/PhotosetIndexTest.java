@@ -0,0 +1,88 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.model.Photo;
+import com.tbilou.flickrspring.model.PhotoPage;
+import com.tbilou.flickrspring.model.Photoset;
+import com.tbilou.flickrspring.service.flickr.FlickrApiService;
+import com.tbilou.flickrspring.service.flickr.PageFetcher;
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+
+import static org.junit.Assert.assertEquals;
+import static org.mockito.ArgumentMatchers.anyString;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.when;
+
+public class PhotosetIndexTest {
+
+    private final FlickrApiService flickrApiService = mock(FlickrApiService.class);
+
+    private PageFetcher pageFetcher;
+    private PhotosetIndex photosetIndex;
+
+    @Before
+    public void setUp() {
+        pageFetcher = new PageFetcher();
+        ReflectionTestUtils.setField(pageFetcher, "parallelism", 2);
+        pageFetcher.init();
+        photosetIndex = new PhotosetIndex(flickrApiService, pageFetcher, new SimpleMeterRegistry());
+        photosetIndex.init();
+        when(flickrApiService.getAllContexts(anyString())).thenReturn("NoSet");
+    }
+
+    @After
+    public void tearDown() {
+        pageFetcher.shutdown();
+    }
+
+    @Test
+    public void photosFollowTheirSets() {
+        final Photoset beach = photoset("200", "Beach", "1");
+        final Photoset family = photoset("100", "Family", "1");
+        when(flickrApiService.photosetsGetList()).thenReturn(Arrays.asList(beach, family));
+        photos("200", "1", "2");
+        photos("100", "2", "3");
+
+        // In both sets, always the one with the lowest id
+        assertEquals("Beach", photosetIndex.photosetName("1"));
+        assertEquals("Family", photosetIndex.photosetName("2"));
+
+        // Photo 2 left Family
+        family.setDateUpdate("2");
+        photos("100", "3");
+        photosetIndex.refresh();
+        assertEquals("Beach", photosetIndex.photosetName("2"));
+
+        // Beach was deleted
+        when(flickrApiService.photosetsGetList()).thenReturn(Arrays.asList(family));
+        photosetIndex.refresh();
+        assertEquals("NoSet", photosetIndex.photosetName("1"));
+        assertEquals("Family", photosetIndex.photosetName("3"));
+    }
+
+    private static Photoset photoset(String id, String title, String dateUpdate) {
+        final Photoset photoset = new Photoset();
+        photoset.setId(id);
+        photoset.setTitle(title);
+        photoset.setDateUpdate(dateUpdate);
+        return photoset;
+    }
+
+    private void photos(String photosetId, String... photoIds) {
+        final PhotoPage page = new PhotoPage();
+        page.setPage(1);
+        page.setPages(1);
+        for (String id : photoIds) {
+            final Photo photo = new Photo();
+            photo.setId(id);
+            page.getPhotos().add(photo);
+        }
+        when(flickrApiService.getPhotosAsync(photosetId, "1")).thenReturn(CompletableFuture.completedFuture(page));
+    }
+}
@@ -0,0 +1,195 @@
+package com.tbilou.flickrspring.service;
+
+import com.sun.net.httpserver.HttpServer;
+import org.apache.http.impl.client.CloseableHttpClient;
+import org.apache.http.impl.client.HttpClients;
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.URL;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class SegmentedDownloaderTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    private static final String ETAG = "\"v2\"";
+
+    private final byte[] photo = new byte[100_000];
+    private final List<String> ranges = new CopyOnWriteArrayList<>();
+    private final List<String> methods = new CopyOnWriteArrayList<>();
+
+    private HttpServer server;
+    private CloseableHttpClient client;
+    private SegmentedDownloader downloader;
+
+    @Before
+    public void setUp() throws IOException {
+        for (int i = 0; i < photo.length; i++) {
+            photo[i] = (byte) i;
+        }
+
+        server = HttpServer.create(new InetSocketAddress("localhost", 0), 0);
+        server.createContext("/photo.jpg", exchange -> {
+            methods.add(exchange.getRequestMethod());
+            exchange.getResponseHeaders().add("Accept-Ranges", "bytes");
+            exchange.getResponseHeaders().add("ETag", ETAG);
+            final String range = exchange.getRequestHeaders().getFirst("Range");
+            final String ifRange = exchange.getRequestHeaders().getFirst("If-Range");
+            int from = 0;
+            int to = photo.length - 1;
+            int status = 200;
+            if (range != null) {
+                ranges.add(range);
+            }
+            if (range != null && (ifRange == null || ifRange.equals(ETAG))) {
+                final String[] bounds = range.substring("bytes=".length()).split("-", -1);
+                from = Integer.parseInt(bounds[0]);
+                to = bounds[1].isEmpty() ? to : Integer.parseInt(bounds[1]);
+                status = 206;
+                exchange.getResponseHeaders().add("Content-Range", "bytes " + from + "-" + to + "/" + photo.length);
+            }
+            final int length = to + 1 - from;
+            if (exchange.getRequestMethod().equals("HEAD")) {
+                exchange.getResponseHeaders().add("Content-Length", String.valueOf(length));
+                exchange.sendResponseHeaders(status, -1);
+            } else {
+                exchange.sendResponseHeaders(status, length);
+                try (OutputStream os = exchange.getResponseBody()) {
+                    os.write(photo, from, length);
+                } catch (IOException e) {
+                    // The first segment only reads part of the body
+                }
+            }
+            exchange.close();
+        });
+        server.createContext("/gone.jpg", exchange -> {
+            exchange.sendResponseHeaders(410, -1);
+            exchange.close();
+        });
+        server.createContext("/unknown.jpg", exchange -> {
+            // No Content-Length
+            exchange.sendResponseHeaders(200, -1);
+            exchange.close();
+        });
+        server.start();
+
+        client = HttpClients.createDefault();
+        downloader = new SegmentedDownloader(client);
+        ReflectionTestUtils.setField(downloader, "threshold", Long.MAX_VALUE);
+        ReflectionTestUtils.setField(downloader, "connectionsPerFile", 4);
+        ReflectionTestUtils.setField(downloader, "minSegmentSize", 10_000L);
+        ReflectionTestUtils.setField(downloader, "threads", 2);
+        downloader.init();
+    }
+
+    @After
+    public void tearDown() throws IOException {
+        downloader.shutdown();
+        client.close();
+        server.stop(0);
+    }
+
+    @Test
+    public void resumesFromThePartFile() throws IOException {
+        final Path target = folder.getRoot().toPath().resolve("photo.jpg");
+        Files.write(target.resolveSibling("photo.jpg.part"), Arrays.copyOf(photo, 40_000));
+        Files.write(target.resolveSibling("photo.jpg.part.segments"), Arrays.asList(ETAG));
+
+        // Only what was missing counts as downloaded
+        assertEquals(photo.length - 40_000, downloader.download(url(), target));
+
+        assertEquals(Arrays.asList("bytes=40000-"), ranges);
+        assertArrayEquals(photo, Files.readAllBytes(target));
+        assertFalse(Files.exists(target.resolveSibling("photo.jpg.part")));
+    }
+
+    @Test
+    public void partFileOfAReplacedPhotoIsStartedOver() throws IOException {
+        final Path target = folder.getRoot().toPath().resolve("photo.jpg");
+        // The first 40000 bytes of the photo that was there before
+        Files.write(target.resolveSibling("photo.jpg.part"), new byte[40_000]);
+        Files.write(target.resolveSibling("photo.jpg.part.segments"), Arrays.asList("\"v1\""));
+
+        downloader.download(url(), target);
+
+        assertArrayEquals(photo, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void smallFilesTakeASingleGet() throws IOException {
+        final Path target = folder.getRoot().toPath().resolve("photo.jpg");
+
+        downloader.download(url(), target);
+
+        assertEquals(Arrays.asList("GET"), methods);
+        assertArrayEquals(photo, Files.readAllBytes(target));
+    }
+
+    @Test
+    public void largeFilesAreSplitAfterTheFirstGet() throws IOException {
+        ReflectionTestUtils.setField(downloader, "threshold", 50_000L);
+        final Path target = folder.getRoot().toPath().resolve("photo.jpg");
+
+        assertEquals(photo.length, downloader.download(url(), target));
+
+        // The first segment comes from the first GET
+        assertEquals(4, methods.size());
+        assertFalse(methods.contains("HEAD"));
+        assertEquals(3, ranges.size());
+        assertArrayEquals(photo, Files.readAllBytes(target));
+        assertFalse(Files.exists(target.resolveSibling("photo.jpg.part.segments")));
+    }
+
+    @Test
+    public void photosThatAreGoneFailPermanently() throws IOException {
+        final Path target = folder.getRoot().toPath().resolve("gone.jpg");
+
+        try {
+            downloader.download(new URL("http://localhost:" + server.getAddress().getPort() + "/gone.jpg"), target);
+            fail("A 410 should not be downloaded");
+        } catch (HttpStatusException e) {
+            assertEquals(410, e.getStatus());
+            assertTrue(HttpStatusException.isPermanent(new RuntimeException(e.getMessage(), e)));
+        }
+        assertFalse(Files.exists(target));
+    }
+
+    @Test
+    public void onlyASizeTheServerConfirmsIsComplete() throws IOException {
+        final Path file = folder.getRoot().toPath().resolve("photo.jpg");
+        Files.write(file, photo);
+        final String server = "http://localhost:" + this.server.getAddress().getPort();
+
+        assertTrue(downloader.isComplete(url(), file));
+        assertFalse(downloader.isComplete(new URL(server + "/unknown.jpg"), file));
+        try {
+            downloader.isComplete(new URL(server + "/gone.jpg"), file);
+            fail("A 410 can't tell whether the file is complete");
+        } catch (HttpStatusException e) {
+            assertEquals(410, e.getStatus());
+        }
+    }
+
+    private URL url() throws IOException {
+        return new URL("http://localhost:" + server.getAddress().getPort() + "/photo.jpg");
+    }
+}
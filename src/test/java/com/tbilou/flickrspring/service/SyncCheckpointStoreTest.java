@@ -0,0 +1,71 @@
+package com.tbilou.flickrspring.service;
+
+import com.tbilou.flickrspring.model.Photo;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+
+public class SyncCheckpointStoreTest {
+
+    @Rule
+    public TemporaryFolder folder = new TemporaryFolder();
+
+    @Test
+    public void resumesAnInterruptedRunFromTheLastPublishedPhoto() {
+        final File file = new File(folder.getRoot(), "checkpoint/.sync-checkpoint");
+
+        SyncCheckpointStore store = store(file);
+        SyncCheckpointStore.Run run = store.begin();
+        final long since = run.getSince();
+        assertEquals(since, run.minDate());
+        store.published(run, photos(since + 100, since + 200));
+        store.published(run, photos(since + 200, since + 300));
+
+        // Crash, a new process picks up the same run from the photos updated at since + 300
+        SyncCheckpointStore.Run resumed = store(file).begin();
+        assertEquals(run.getStarted(), resumed.getStarted());
+        assertEquals(since + 299, resumed.minDate());
+
+        store.completed(resumed);
+        SyncCheckpointStore.Run next = store(file).begin();
+        assertEquals(run.getStarted(), next.getSince());
+        assertEquals(run.getStarted(), next.minDate());
+    }
+
+    @Test
+    public void unsortedListingsResumeFromTheStart() {
+        final File file = new File(folder.getRoot(), ".sync-checkpoint");
+
+        SyncCheckpointStore store = store(file);
+        SyncCheckpointStore.Run run = store.begin();
+        final long since = run.getSince();
+        store.published(run, photos(since + 100, since + 200));
+        store.published(run, photos(since + 150, since + 160));
+        store.published(run, photos(since + 300, since + 400));
+
+        assertEquals(run.getSince(), store(file).begin().minDate());
+    }
+
+    private static List<Photo> photos(long... lastupdates) {
+        final List<Photo> photos = new ArrayList<>();
+        for (long lastupdate : lastupdates) {
+            final Photo photo = new Photo();
+            photo.setLastupdate(String.valueOf(lastupdate));
+            photos.add(photo);
+        }
+        return photos;
+    }
+
+    private SyncCheckpointStore store(File file) {
+        SyncCheckpointStore store = new SyncCheckpointStore();
+        ReflectionTestUtils.setField(store, "path", file.getAbsolutePath());
+        return store;
+    }
+}
@@ -0,0 +1,43 @@
+package com.tbilou.flickrspring.service.flickr;
+
+import io.micrometer.core.instrument.simple.SimpleMeterRegistry;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class FlickrRateLimiterTest {
+
+    private FlickrRateLimiter rateLimiter;
+
+    @Before
+    public void setUp() {
+        rateLimiter = new FlickrRateLimiter(new SimpleMeterRegistry());
+        ReflectionTestUtils.setField(rateLimiter, "hourly", 3600);
+        ReflectionTestUtils.setField(rateLimiter, "burst", 5);
+        rateLimiter.init();
+    }
+
+    @Test
+    public void allowsABurstThenMakesCallersWait() {
+        for (int i = 0; i < 5; i++) {
+            assertEquals(0, rateLimiter.tryAcquire());
+        }
+        // 3600 per hour means one token per second
+        final long wait = rateLimiter.tryAcquire();
+        assertTrue(wait > TimeUnit.MILLISECONDS.toNanos(900));
+        assertTrue(wait <= TimeUnit.SECONDS.toNanos(1));
+    }
+
+    @Test
+    public void throttlingPausesEveryoneAndEmptiesTheBucket() {
+        rateLimiter.throttled(10_000);
+
+        assertEquals(0, rateLimiter.available(), 0);
+        assertTrue(rateLimiter.tryAcquire() > TimeUnit.SECONDS.toNanos(9));
+    }
+}
@@ -0,0 +1,101 @@
+package com.tbilou.flickrspring.service.flickr;
+
+import com.tbilou.flickrspring.model.Photo;
+import com.tbilou.flickrspring.model.PhotoPage;
+import com.tbilou.flickrspring.model.Photoset;
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.StringReader;
+import java.util.List;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class FlickrResponseReaderTest {
+
+    @Test
+    public void failuresCarryTheCodeAndMessage() throws IOException {
+        try {
+            FlickrResponseReader.readPhotoPage(new StringReader(
+                    "{\"stat\":\"fail\",\"code\":1,\"message\":\"Photoset not found\"}"), "photoset");
+            fail("stat:fail should throw");
+        } catch (FlickrApiException e) {
+            assertEquals("Flickr answered stat:fail, code 1 - Photoset not found", e.getMessage());
+        }
+    }
+
+    @Test
+    public void readsNumbersSentAsStrings() throws IOException {
+        // flickr.photosets.getPhotos, trimmed
+        final PhotoPage page = FlickrResponseReader.readPhotoPage(new StringReader("{\"photoset\":{"
+                + "\"id\":\"72157688\",\"primary\":\"35701101\",\"owner\":\"1234@N00\",\"ownername\":\"tbilou\","
+                + "\"photo\":[{\"id\":\"35701101\",\"secret\":\"abc\",\"server\":\"4\",\"farm\":5,\"title\":\"IMG_7654\",\"isprimary\":\"1\","
+                + "\"datetaken\":\"2017-10-14 21:31:12\",\"datetakengranularity\":\"0\",\"media\":\"photo\","
+                + "\"url_o\":\"https:\\/\\/farm5.staticflickr.com\\/4\\/35701101_o.jpg\",\"height_o\":\"3024\"}],"
+                + "\"page\":\"2\",\"per_page\":\"500\",\"perpage\":\"500\",\"pages\":\"3\",\"title\":\"Holidays\",\"total\":\"1201\"},"
+                + "\"stat\":\"ok\"}"), "photoset");
+
+        assertEquals(2, page.getPage());
+        assertEquals(3, page.getPages());
+        assertEquals(500, page.getPerpage());
+        assertEquals(1201, page.getTotal());
+        assertEquals("Holidays", page.getTitle());
+        final Photo photo = page.getPhotos().get(0);
+        assertEquals("35701101", photo.getId());
+        assertEquals("https://farm5.staticflickr.com/4/35701101_o.jpg", photo.getUrl());
+        assertEquals("2017-10-14 21:31:12", photo.getDatetaken());
+    }
+
+    @Test
+    public void readsContentTitlesAndMissingFields() throws IOException {
+        // flickr.photosets.getList, the second set has no primary nor date_update
+        final List<Photoset> photosets = FlickrResponseReader.readPhotosets(new StringReader("{\"photosets\":{"
+                + "\"page\":1,\"pages\":1,\"perpage\":2,\"total\":2,\"photoset\":["
+                + "{\"id\":\"72157688\",\"primary\":\"35701101\",\"photos\":\"12\",\"videos\":0,"
+                + "\"title\":{\"_content\":\"Holidays\"},\"description\":{\"_content\":\"\"},\"date_update\":\"1508012345\"},"
+                + "{\"id\":\"72157699\",\"photos\":3,\"title\":{\"_content\":\"2017\"}}]},"
+                + "\"stat\":\"ok\"}"));
+
+        assertEquals(2, photosets.size());
+        assertEquals("Holidays", photosets.get(0).getTitle());
+        assertEquals(12, photosets.get(0).getPhotos());
+        assertEquals("1508012345", photosets.get(0).getDateUpdate());
+        assertEquals("2017", photosets.get(1).getTitle());
+        assertNull(photosets.get(1).getPrimary());
+        assertNull(photosets.get(1).getDateUpdate());
+
+        // flickr.photos.recentlyUpdated without the extras
+        final Photo photo = FlickrResponseReader.readPhotoPage(new StringReader(
+                "{\"photos\":{\"page\":1,\"pages\":1,\"perpage\":500,\"total\":1,\"photo\":[{\"id\":\"1\"}]},\"stat\":\"ok\"}"), "photos")
+                .getPhotos().get(0);
+        assertEquals("1", photo.getId());
+        assertNull(photo.getUrl());
+        assertNull(photo.getLastupdate());
+    }
+
+    @Test
+    public void readsAnEmptyPage() throws IOException {
+        // flickr.photos.getNotInSet when every photo is in a set
+        final PhotoPage page = FlickrResponseReader.readPhotoPage(new StringReader(
+                "{\"photos\":{\"page\":1,\"pages\":0,\"perpage\":500,\"total\":\"0\",\"photo\":[]},\"stat\":\"ok\"}"), "photos");
+
+        assertEquals(0, page.getPages());
+        assertEquals(0, page.getTotal());
+        assertTrue(page.getPhotos().isEmpty());
+    }
+
+    @Test
+    public void readsTheTitleOfTheLowestSet() throws IOException {
+        // flickr.photos.getAllContexts of a photo in two sets
+        final String title = FlickrResponseReader.readSetTitle(new StringReader("{\"set\":["
+                + "{\"title\":\"Later\",\"id\":\"72157699\",\"primary\":\"1\"},"
+                + "{\"title\":\"Earlier\",\"id\":\"72157688\",\"primary\":\"1\"}],"
+                + "\"pool\":[],\"stat\":\"ok\"}"), "NoSet");
+
+        assertEquals("Earlier", title);
+        assertEquals("NoSet", FlickrResponseReader.readSetTitle(new StringReader("{\"stat\":\"ok\"}"), "NoSet"));
+    }
+}
@@ -0,0 +1,81 @@
+package com.tbilou.flickrspring.service.flickr;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+public class PageFetcherTest {
+
+    private PageFetcher pageFetcher;
+
+    @Before
+    public void setUp() {
+        pageFetcher = new PageFetcher();
+        ReflectionTestUtils.setField(pageFetcher, "parallelism", 4);
+        pageFetcher.init();
+    }
+
+    @After
+    public void tearDown() {
+        pageFetcher.shutdown();
+    }
+
+    @Test
+    public void pagesAreHandedOverInOrder() {
+        List<Integer> seen = new ArrayList<>();
+
+        pageFetcher.forEachPage(page -> {
+            sleep(ThreadLocalRandom.current().nextInt(20));
+            return page;
+        }, page -> 25, seen::add);
+
+        assertEquals(25, seen.size());
+        for (int i = 0; i < seen.size(); i++) {
+            assertEquals(Integer.valueOf(i + 1), seen.get(i));
+        }
+    }
+
+    @Test
+    public void noMoreThanParallelismPagesInFlight() {
+        AtomicInteger inFlight = new AtomicInteger();
+        AtomicInteger maxInFlight = new AtomicInteger();
+
+        pageFetcher.forEachPage(page -> {
+            maxInFlight.accumulateAndGet(inFlight.incrementAndGet(), Math::max);
+            sleep(10);
+            inFlight.decrementAndGet();
+            return page;
+        }, page -> 20, page -> {
+        });
+
+        assertTrue(maxInFlight.get() <= 4);
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void fetchFailuresArePropagated() {
+        pageFetcher.forEachPage(page -> {
+            if (page == 3) {
+                throw new IllegalStateException("boom");
+            }
+            return page;
+        }, page -> 5, page -> {
+        });
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}
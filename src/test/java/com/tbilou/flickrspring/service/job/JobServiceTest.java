@@ -0,0 +1,100 @@
+package com.tbilou.flickrspring.service.job;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+import org.springframework.test.util.ReflectionTestUtils;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+public class JobServiceTest {
+
+    private JobService jobService;
+
+    @Before
+    public void setUp() {
+        jobService = new JobService();
+        ReflectionTestUtils.setField(jobService, "threads", 2);
+        ReflectionTestUtils.setField(jobService, "history", 10);
+        jobService.init();
+    }
+
+    @After
+    public void tearDown() {
+        jobService.shutdown();
+    }
+
+    @Test
+    public void onlyOneJobOfEachTypeAtATime() throws Exception {
+        final CountDownLatch release = new CountDownLatch(1);
+        final Job first = jobService.start(JobType.FULL_BACKUP, "first", () -> await(release));
+
+        try {
+            jobService.start(JobType.FULL_BACKUP, "second", () -> { });
+            fail("Second full backup should have been refused");
+        } catch (JobAlreadyRunningException e) {
+            assertSame(first, e.getRunning());
+        }
+        // Other types are not affected
+        final Job other = jobService.start(JobType.CATALOG, "other", () -> { });
+
+        release.countDown();
+        waitUntilFinished(first);
+        waitUntilFinished(other);
+        assertEquals(Job.State.COMPLETED, first.getState());
+
+        // Once it is finished another one can start
+        final Job again = jobService.start(JobType.FULL_BACKUP, "again", () -> { });
+        waitUntilFinished(again);
+        assertEquals(Job.State.COMPLETED, again.getState());
+    }
+
+    @Test
+    public void cancelStopsARunningJob() throws Exception {
+        final CountDownLatch running = new CountDownLatch(1);
+        final Job job = jobService.start(JobType.RECENT_UPDATES, "endless", () -> {
+            running.countDown();
+            while (true) {
+                JobContextHolder.current().ifPresent(Job::pageFetched);
+                JobContextHolder.current().ifPresent(Job::checkCancelled);
+                sleep(5);
+            }
+        });
+        assertTrue(running.await(5, TimeUnit.SECONDS));
+
+        jobService.cancel(job.getId());
+        waitUntilFinished(job);
+
+        assertEquals(Job.State.CANCELLED, job.getState());
+        assertTrue(job.getPagesFetched() > 0);
+    }
+
+    private static void waitUntilFinished(Job job) throws InterruptedException {
+        final long deadline = System.currentTimeMillis() + 5000;
+        while (job.getState().isActive() && System.currentTimeMillis() < deadline) {
+            Thread.sleep(5);
+        }
+    }
+
+    private static void await(CountDownLatch latch) {
+        try {
+            latch.await();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    private static void sleep(long millis) {
+        try {
+            Thread.sleep(millis);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+}